@@ -0,0 +1,451 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+
+/**
+ * Checks recipient addresses before a message is sent, so that a bad address is dropped instead of
+ * causing the server to reject the whole message. Addresses are checked against the RFC 5322
+ * <em>addr-spec</em> syntax in a single pass, without regular expressions, then normalized and
+ * de-duplicated.<p>
+ * Domains that a server has refused are remembered for {@link #REJECTED_TTL} milliseconds, and
+ * addresses at those domains are dropped without contacting the server. Results are shared by all
+ * {@link Mailer}s, and are learned from the responses to previous sends.
+ * @author Phil Brown
+ */
+public class AddressValidator
+{
+	/** Longest address, in characters (RFC 5321) */
+	public static final int MAX_LENGTH = 254;
+
+	/** Longest local part, in characters (RFC 5321) */
+	public static final int MAX_LOCAL_LENGTH = 64;
+
+	/** Largest number of domains remembered */
+	public static final int MAX_DOMAINS = 1024;
+
+	/** How long a rejected domain is skipped, in milliseconds */
+	public static final long REJECTED_TTL = 60*60*1000;
+
+	/** Enhanced status codes (RFC 3463) that reject a whole domain rather than a single mailbox */
+	private static final String[] DOMAIN_STATUS_CODES = {"5.1.2", "5.1.10", "5.4.4", "5.4.310"};
+
+	/** Characters allowed in an unquoted local part, besides letters and digits (RFC 5322 atext) */
+	private static final String ATEXT = "!#$%&'*+-/=?^_`{|}~";
+
+	/** Domain results, keyed by lower-case domain, least recently used first */
+	private static final Map<String, DomainResult> domains = new LinkedHashMap<String, DomainResult>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DomainResult> eldest)
+		{
+			return size() > MAX_DOMAINS;
+		}
+	};
+
+	/**
+	 * The outcome of checking a list of addresses
+	 */
+	public static class Result
+	{
+		/** the usable addresses, normalized, without duplicates, in their original order */
+		public final String[] accepted;
+		/** the addresses that were dropped because they are malformed or at a rejected domain */
+		public final List<String> rejected;
+
+		/**
+		 * Constructor
+		 * @param accepted the usable addresses
+		 * @param rejected the dropped addresses
+		 */
+		Result(String[] accepted, List<String> rejected)
+		{
+			this.accepted = accepted;
+			this.rejected = rejected;
+		}
+	}
+
+	/**
+	 * The last known outcome of sending to a domain
+	 */
+	private static class DomainResult
+	{
+		/** whether or not the domain accepted mail */
+		final boolean accepted;
+		/** when the result was recorded */
+		final long time;
+
+		/**
+		 * Constructor
+		 * @param accepted whether or not the domain accepted mail
+		 * @param time when the result was recorded
+		 */
+		DomainResult(boolean accepted, long time)
+		{
+			this.accepted = accepted;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Checks, normalizes and de-duplicates a list of addresses. Each address may be a plain address,
+	 * such as <em>jo@example.com</em>, or include a display name, such as <em>Jo &lt;jo@example.com&gt;</em>.
+	 * @param addresses the addresses
+	 * @return the usable and dropped addresses
+	 */
+	public static Result filter(String[] addresses)
+	{
+		List<String> accepted = new ArrayList<String>(addresses.length);
+		List<String> rejected = new ArrayList<String>();
+		Set<String> seen = new HashSet<String>();
+		long now = System.currentTimeMillis();
+		for (String address : addresses)
+		{
+			if (address == null)
+				continue;
+			String normalized = normalize(address);
+			if (normalized == null)
+			{
+				rejected.add(address);
+				continue;
+			}
+			String spec = addressOf(normalized);
+			if (isRejected(domainOf(spec), now))
+			{
+				rejected.add(address);
+				continue;
+			}
+			if (seen.add(spec))
+				accepted.add(normalized);
+		}
+		return new Result(accepted.toArray(new String[accepted.size()]), rejected);
+	}
+
+	/**
+	 * Checks and normalizes a single address. Surrounding white space is removed and the domain is
+	 * converted to lower case. The local part is left as it is, since servers may treat it as case-sensitive.
+	 * @param address a plain address, or an address with a display name
+	 * @return the normalized address, or <em>null</em> if the address is malformed
+	 */
+	public static String normalize(String address)
+	{
+		String personal = null;
+		String spec = address.trim();
+		if (spec.endsWith(">"))
+		{
+			int open = spec.lastIndexOf('<');
+			if (open < 0)
+				return null;
+			personal = spec.substring(0, open).trim();
+			if (personal.length() >= 2 && personal.startsWith("\"") && personal.endsWith("\""))
+				personal = personal.substring(1, personal.length() - 1);
+			if (personal.length() == 0)
+				personal = null;
+			spec = spec.substring(open + 1, spec.length() - 1).trim();
+		}
+		int at = checkAddress(spec);
+		if (at < 0)
+			return null;
+		spec = spec.substring(0, at + 1) + spec.substring(at + 1).toLowerCase(Locale.US);
+		if (personal == null)
+			return spec;
+		try
+		{
+			return new InternetAddress(spec, personal, "UTF-8").toString();
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			return spec;
+		}
+	}
+
+	/**
+	 * Checks an address against the RFC 5322 <em>addr-spec</em> syntax. The local part may be a
+	 * dot-atom or a quoted string, and the domain a host name or an address literal such as
+	 * <em>[192.0.2.1]</em>. Host names must have at least two labels. Characters outside ASCII are
+	 * allowed, as in RFC 6531. Each character is examined once.
+	 * @param spec the address, without a display name
+	 * @return the index of the <em>@</em> that separates the local part from the domain, or -1 if
+	 * the address is malformed
+	 */
+	static int checkAddress(String spec)
+	{
+		int length = spec.length();
+		if (length == 0 || length > MAX_LENGTH)
+			return -1;
+		int i = 0;
+		if (spec.charAt(0) == '"')
+		{
+			i = 1;
+			while (i < length && spec.charAt(i) != '"')
+			{
+				char c = spec.charAt(i);
+				if (c == '\r' || c == '\n')
+					return -1;
+				i += c == '\\' ? 2 : 1;
+			}
+			if (i >= length)
+				return -1;
+			i++;
+		}
+		else
+		{
+			char previous = '.';
+			for (; i < length; i++)
+			{
+				char c = spec.charAt(i);
+				if (c == '@')
+					break;
+				if (c == '.')
+				{
+					if (previous == '.')
+						return -1;
+				}
+				else if (!isAtext(c))
+					return -1;
+				previous = c;
+			}
+			if (previous == '.')
+				return -1;
+		}
+		int at = i;
+		if (at == 0 || at > MAX_LOCAL_LENGTH || at >= length - 1 || spec.charAt(at) != '@')
+			return -1;
+		return checkDomain(spec, at + 1) ? at : -1;
+	}
+
+	/**
+	 * Checks the domain part of an address
+	 * @param spec the address
+	 * @param start index of the first character of the domain
+	 * @return {@code true} if the domain is well formed
+	 */
+	private static boolean checkDomain(String spec, int start)
+	{
+		int length = spec.length();
+		if (spec.charAt(start) == '[')
+		{
+			if (spec.charAt(length - 1) != ']' || length - start < 3)
+				return false;
+			for (int i = start + 1; i < length - 1; i++)
+			{
+				char c = spec.charAt(i);
+				if (c < 33 || c == '[' || c == ']' || c == '\\' || c == 127)
+					return false;
+			}
+			return true;
+		}
+		int labels = 0;
+		int labelStart = start;
+		boolean numeric = true;
+		for (int i = start; i <= length; i++)
+		{
+			char c = i < length ? spec.charAt(i) : '.';
+			if (c == '.')
+			{
+				int labelLength = i - labelStart;
+				if (labelLength == 0 || labelLength > 63
+					|| spec.charAt(labelStart) == '-' || spec.charAt(i - 1) == '-')
+					return false;
+				labels++;
+				if (i < length)
+				{
+					labelStart = i + 1;
+					numeric = true;
+				}
+			}
+			else if (c >= '0' && c <= '9')
+				continue;
+			else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-' || c > 127)
+				numeric = false;
+			else
+				return false;
+		}
+		//the top-level domain is never all digits
+		return labels >= 2 && !numeric;
+	}
+
+	/**
+	 * Determines whether or not a character may appear in an unquoted local part
+	 * @param c the character
+	 * @return {@code true} if the character is allowed
+	 */
+	private static boolean isAtext(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+			|| c > 127 || ATEXT.indexOf(c) >= 0;
+	}
+
+	/**
+	 * Get the address without its display name
+	 * @param normalized a normalized address
+	 * @return the address
+	 */
+	private static String addressOf(String normalized)
+	{
+		if (!normalized.endsWith(">"))
+			return normalized;
+		return normalized.substring(normalized.lastIndexOf('<') + 1, normalized.length() - 1);
+	}
+
+	/**
+	 * Get the domain of an address
+	 * @param spec the address
+	 * @return the domain, in lower case
+	 */
+	private static String domainOf(String spec)
+	{
+		return spec.substring(spec.lastIndexOf('@') + 1).toLowerCase(Locale.US);
+	}
+
+	/**
+	 * Records the outcome of sending to a domain. An accepted result replaces an earlier rejection.
+	 * @param domain the domain
+	 * @param accepted whether or not the domain accepted mail
+	 */
+	public static void recordDomain(String domain, boolean accepted)
+	{
+		synchronized (domains)
+		{
+			domains.put(domain.toLowerCase(Locale.US), new DomainResult(accepted, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Get the last known outcome of sending to a domain
+	 * @param domain the domain
+	 * @return {@link Boolean#TRUE} if the domain accepted mail, {@link Boolean#FALSE} if it was rejected
+	 * within the last {@link #REJECTED_TTL} milliseconds, or <em>null</em> if nothing is known
+	 */
+	public static Boolean getDomainStatus(String domain)
+	{
+		long now = System.currentTimeMillis();
+		synchronized (domains)
+		{
+			DomainResult result = domains.get(domain.toLowerCase(Locale.US));
+			if (result == null || (!result.accepted && now - result.time > REJECTED_TTL))
+				return null;
+			return result.accepted;
+		}
+	}
+
+	/**
+	 * Forgets every recorded domain
+	 */
+	public static void clearDomains()
+	{
+		synchronized (domains)
+		{
+			domains.clear();
+		}
+	}
+
+	/**
+	 * Determines whether or not a domain was recently rejected
+	 * @param domain the lower-case domain
+	 * @param now the current time
+	 * @return {@code true} if addresses at the domain should be dropped
+	 */
+	private static boolean isRejected(String domain, long now)
+	{
+		synchronized (domains)
+		{
+			DomainResult result = domains.get(domain);
+			if (result == null || result.accepted)
+				return false;
+			if (now - result.time > REJECTED_TTL)
+			{
+				domains.remove(domain);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Records the domains of addresses that received a message as accepted
+	 * @param sent the addresses the server accepted. May be <em>null</em>.
+	 */
+	static void record(Address[] sent)
+	{
+		if (sent == null)
+			return;
+		for (Address address : sent)
+		{
+			if (address instanceof InternetAddress)
+				recordDomain(domainOf(((InternetAddress) address).getAddress()), true);
+		}
+	}
+
+	/**
+	 * Learns domain results from a failed or partially failed send. Domains that received the message
+	 * are recorded as accepted. Domains refused with a domain-level status code, such as 5.1.2 (bad
+	 * destination system), are recorded as rejected. Other failures, such as unknown mailboxes, say
+	 * nothing about the rest of the domain and are ignored.
+	 * @param e the exception thrown by the transport
+	 */
+	static void record(SendFailedException e)
+	{
+		record(e.getValidSentAddresses());
+		for (Exception next = e; next != null; )
+		{
+			if (next instanceof SMTPAddressFailedException)
+			{
+				SMTPAddressFailedException failed = (SMTPAddressFailedException) next;
+				if (isDomainFailure(failed.getMessage()))
+					recordDomain(domainOf(failed.getAddress().getAddress()), false);
+			}
+			next = next instanceof MessagingException ? ((MessagingException) next).getNextException() : null;
+		}
+	}
+
+	/**
+	 * Determines whether or not a server response rejects a whole domain
+	 * @param response the response, such as <em>550 5.1.2 Host unknown</em>
+	 * @return {@code true} if the response has a domain-level enhanced status code
+	 */
+	private static boolean isDomainFailure(String response)
+	{
+		if (response == null)
+			return false;
+		for (String token : response.trim().split("\\s+", 3))
+		{
+			for (String code : DOMAIN_STATUS_CODES)
+			{
+				if (code.equals(token))
+					return true;
+			}
+		}
+		return false;
+	}
+}
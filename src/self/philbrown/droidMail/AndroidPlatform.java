@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The Android {@link Platform}. Logs with {@link Log}, and calls listeners on the main thread.
+ * This is the only engine class that uses the Android API, and it is only loaded on Android.
+ * @author Phil Brown
+ */
+class AndroidPlatform extends Platform
+{
+	/** Posts callbacks to the main thread. Created on first use. */
+	private Handler handler;
+
+	@Override
+	public void debug(String tag, String message, Throwable t)
+	{
+		Log.d(tag, message, t);
+	}
+
+	@Override
+	public void warn(String tag, String message, Throwable t)
+	{
+		Log.w(tag, message, t);
+	}
+
+	/**
+	 * Posts a callback to the main thread
+	 * @param callback the callback
+	 */
+	@Override
+	public void post(Runnable callback)
+	{
+		Handler h;
+		synchronized (this)
+		{
+			if (handler == null)
+				handler = new Handler(Looper.getMainLooper());
+			h = handler;
+		}
+		h.post(callback);
+	}
+
+	/**
+	 * Creates a factory for daemon threads. Android does not have virtual threads.
+	 * @param name the thread name prefix
+	 * @return the thread factory
+	 */
+	@Override
+	public ThreadFactory newThreadFactory(String name)
+	{
+		return newDaemonThreadFactory(name);
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reports how many bytes each part of an outgoing message will use on the wire, which encoding was
+ * chosen for it, and how much was saved by compressing attachments. Sizes are estimates made while
+ * the message is built, so no extra pass over the content is needed.
+ * @author Phil Brown
+ * @see Mailer#getByteBudget()
+ */
+public class ByteBudget
+{
+	/** The message parts, in the order they were added */
+	private List<Part> parts = new ArrayList<Part>();
+
+	/** Bytes saved by compressing attachments */
+	private long compressionSavings;
+
+	/**
+	 * Records a message part
+	 * @param name describes the part, such as <em>text</em> or an attachment file name
+	 * @param encoding the encoding chosen for the part
+	 */
+	void add(String name, TransferEncoding encoding)
+	{
+		parts.add(new Part(name, encoding.getEncoding(), encoding.getRawSize(), encoding.getEncodedSize()));
+	}
+
+	/**
+	 * Records bytes saved by compressing an attachment
+	 * @param bytes the difference between the original and compressed sizes
+	 */
+	void addCompressionSavings(long bytes)
+	{
+		compressionSavings += bytes;
+	}
+
+	/**
+	 * Get the message parts
+	 * @return an unmodifiable list of the parts, in the order they were added
+	 */
+	public List<Part> getParts()
+	{
+		return Collections.unmodifiableList(parts);
+	}
+
+	/**
+	 * Get the total size of all parts before encoding
+	 * @return the size in bytes
+	 */
+	public long getRawSize()
+	{
+		long size = 0;
+		for (Part p : parts)
+			size += p.rawSize;
+		return size;
+	}
+
+	/**
+	 * Get the total estimated size of all parts after encoding
+	 * @return the size in bytes
+	 */
+	public long getEncodedSize()
+	{
+		long size = 0;
+		for (Part p : parts)
+			size += p.encodedSize;
+		return size;
+	}
+
+	/**
+	 * Get the number of bytes saved by compressing attachments, before encoding
+	 * @return the size in bytes
+	 */
+	public long getCompressionSavings()
+	{
+		return compressionSavings;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (Part p : parts)
+		{
+			builder.append(p).append('\n');
+		}
+		builder.append("total: ").append(getRawSize()).append(" bytes -> ").append(getEncodedSize()).append(" bytes");
+		if (compressionSavings > 0)
+			builder.append(" (").append(compressionSavings).append(" bytes saved by compression)");
+		return builder.toString();
+	}
+
+	/**
+	 * The size and encoding of a single message part
+	 */
+	public static class Part
+	{
+		/** describes the part, such as <em>text</em> or an attachment file name */
+		public final String name;
+		/** the part's content-transfer-encoding */
+		public final String encoding;
+		/** size before encoding, in bytes */
+		public final long rawSize;
+		/** estimated size after encoding, in bytes */
+		public final long encodedSize;
+
+		/**
+		 * Constructor
+		 * @param name describes the part
+		 * @param encoding the content-transfer-encoding
+		 * @param rawSize size before encoding
+		 * @param encodedSize size after encoding
+		 */
+		public Part(String name, String encoding, long rawSize, long encodedSize)
+		{
+			this.name = name;
+			this.encoding = encoding;
+			this.rawSize = rawSize;
+			this.encodedSize = encodedSize;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + ": " + rawSize + " bytes -> " + encodedSize + " bytes " + encoding;
+		}
+	}
+}
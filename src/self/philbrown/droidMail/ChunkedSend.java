@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends one message to a {@link RecipientSource} of any size. Recipients are read a chunk at a time,
+ * and each chunk is sent as its own message with the recipients hidden from each other. A new chunk
+ * is only read once an earlier one has finished, so at most {@link #MAX_IN_FLIGHT} chunks are held
+ * in memory.
+ * @author Phil Brown
+ * @see Mailer#send(MailMessage, RecipientSource, int)
+ */
+class ChunkedSend
+{
+	/** logging tag */
+	public static final String TAG = "ChunkedSend";
+
+	/** Largest number of chunks queued or being sent at once */
+	static final int MAX_IN_FLIGHT = 4;
+
+	/** Sends the chunks */
+	private final Mailer mailer;
+
+	/** The message sent to every chunk */
+	private final MailMessage template;
+
+	/** Supplies the recipients */
+	private final RecipientSource source;
+
+	/** Largest number of recipients per chunk */
+	private final int chunkSize;
+
+	/** Number of chunks queued or being sent */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** Number of chunks sent so far. Guarded by this. */
+	private int chunks;
+
+	/** whether or not every recipient has been read. Guarded by this. */
+	private boolean exhausted;
+
+	/** whether or not {@link #template}'s listener has been notified. Guarded by this. */
+	private boolean finished;
+
+	/** whether or not any chunk failed, or the recipients could not be read */
+	private volatile boolean failed;
+
+	/** Reads more recipients on a dispatcher thread */
+	private final Runnable fill = new Runnable() {
+		@Override
+		public void run()
+		{
+			fill();
+		}
+	};
+
+	/** Notified as each chunk finishes */
+	private final Mailer.MailListener chunkListener = new Mailer.MailListener() {
+		@Override
+		public void onSuccess(Mailer m)
+		{
+		}
+
+		@Override
+		public void onError(Mailer m)
+		{
+			failed = true;
+		}
+
+		@Override
+		public void onComplete(Mailer m)
+		{
+			inFlight.decrementAndGet();
+			//may be called on the main thread, so do not read the source here
+			mailer.getDispatcher().execute(fill);
+		}
+	};
+
+	/**
+	 * Constructor
+	 * @param mailer sends the chunks
+	 * @param template the message sent to every chunk. Its destinations are ignored.
+	 * @param source supplies the recipients
+	 * @param chunkSize largest number of recipients per chunk
+	 */
+	ChunkedSend(Mailer mailer, MailMessage template, RecipientSource source, int chunkSize)
+	{
+		this.mailer = mailer;
+		this.template = template;
+		this.source = source;
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * Starts reading recipients and sending chunks in the background
+	 */
+	void start()
+	{
+		mailer.getDispatcher().execute(fill);
+	}
+
+	/**
+	 * Reads and sends chunks until {@link #MAX_IN_FLIGHT} are in flight, and notifies {@link #template}'s
+	 * listener once every chunk has finished
+	 */
+	private synchronized void fill()
+	{
+		while (!exhausted && inFlight.get() < MAX_IN_FLIGHT)
+		{
+			String[] recipients;
+			try
+			{
+				recipients = source.next(chunkSize);
+			}
+			catch (IOException e)
+			{
+				Platform.getInstance().warn(TAG, "Could not read recipients", e);
+				failed = true;
+				recipients = new String[0];
+			}
+			if (recipients.length == 0)
+			{
+				exhausted = true;
+				close();
+				break;
+			}
+			AddressValidator.Result addresses = AddressValidator.filter(recipients);
+			if (!addresses.rejected.isEmpty())
+				Platform.getInstance().warn(TAG, "Not sending to invalid addresses " + addresses.rejected, null);
+			recipients = addresses.accepted;
+			if (recipients.length == 0)
+				continue;
+			chunks++;
+			inFlight.incrementAndGet();
+			MailMessage message = chunk(recipients);
+			//journaling every address would bring the whole list back into memory
+			message.recipientSummary = recipients.length + " recipients, chunk " + chunks + " of " + source;
+			mailer.send(message);
+		}
+		if (exhausted && inFlight.get() == 0 && !finished)
+		{
+			finished = true;
+			finish(chunks > 0 && !failed);
+		}
+	}
+
+	/**
+	 * Creates the message for one chunk of recipients
+	 * @param recipients the recipients
+	 * @return a copy of {@link #template} addressed to {@code recipients}
+	 */
+	private MailMessage chunk(String[] recipients)
+	{
+		MailMessage message = new MailMessage(recipients, template.subject, template.message, template.attachment);
+		message.html = template.html;
+		message.inline = template.inline;
+		message.priority = template.priority;
+		message.bcc = true;
+		message.listener = chunkListener;
+		return message;
+	}
+
+	/**
+	 * Closes the recipient source, logging any error
+	 */
+	private void close()
+	{
+		try
+		{
+			source.close();
+		}
+		catch (IOException e)
+		{
+			Platform.getInstance().warn(TAG, "Could not close recipients", e);
+		}
+	}
+
+	/**
+	 * Notifies {@link #template}'s listener, if any
+	 * @param success whether or not every chunk was sent
+	 */
+	private void finish(final boolean success)
+	{
+		final Mailer.MailListener listener = template.listener;
+		if (listener == null)
+			return;
+		Platform.getInstance().post(new Runnable() {
+			@Override
+			public void run()
+			{
+				if (success)
+					listener.onSuccess(mailer);
+				else
+					listener.onError(mailer);
+				listener.onComplete(mailer);
+			}
+		});
+	}
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Buffers messages sent to the same recipients within a short window, and merges them into a single
+ * digest message. During a burst of notifications this turns many SMTP transactions into one.<p>
+ * Only plain text and HTML messages are merged. Messages with attachments or inline resources,
+ * {@link MailMessage.Priority#TRANSACTIONAL transactional} messages, and the chunks of a large mailing
+ * are always sent on their own. In an HTML digest, each message contributes only the content of its
+ * {@code <body>}, and an HTML-only message is converted to text for the plain text alternative.
+ * @author Phil Brown
+ * @see Mailer#setCoalescing(long, int)
+ */
+class Coalescer
+{
+	/** Separates messages in a plain text digest */
+	private static final String TEXT_SEPARATOR = "\n\n----------------------------------------\n\n";
+
+	/** Separates messages in an HTML digest */
+	private static final String HTML_SEPARATOR = "<hr>";
+
+	/** Elements that start a new line when HTML is converted to text */
+	private static final String[] BLOCK_TAGS = {"br", "p", "div", "li", "tr", "h1", "h2", "h3", "h4", "h5", "h6",
+	                                            "table", "ul", "ol", "blockquote", "pre", "hr"};
+
+	/** Sends the digests */
+	private final Mailer mailer;
+
+	/** Pending messages, keyed by priority and recipients */
+	private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+	/** How long to wait for more messages after the first, in milliseconds. 0 disables coalescing. */
+	private long window;
+
+	/** A batch is sent as soon as it has this many messages */
+	private int maxMessages;
+
+	/**
+	 * Constructor
+	 * @param mailer sends the digests
+	 */
+	Coalescer(Mailer mailer)
+	{
+		this.mailer = mailer;
+	}
+
+	/**
+	 * Sets the coalescing window
+	 * @param window how long to wait for more messages, in milliseconds. 0 disables coalescing.
+	 * @param maxMessages largest number of messages in a digest
+	 */
+	synchronized void setWindow(long window, int maxMessages)
+	{
+		this.window = window;
+		this.maxMessages = Math.max(1, maxMessages);
+	}
+
+	/**
+	 * Buffers a message, if it can be coalesced
+	 * @param message the message
+	 * @return {@code true} if the message was buffered, or {@code false} if it should be sent now
+	 */
+	boolean offer(MailMessage message)
+	{
+		if (message.attachment != null || (message.inline != null && !message.inline.isEmpty())
+			|| message.priority == MailMessage.Priority.TRANSACTIONAL || message.bcc)
+			return false;
+		Batch full = null;
+		synchronized (this)
+		{
+			if (window <= 0)
+				return false;
+			final String key = keyFor(message);
+			Batch batch = batches.get(key);
+			if (batch == null)
+			{
+				final Batch b = new Batch();
+				b.timeout = TimerWheel.getInstance().schedule(new Runnable() {
+					@Override
+					public void run()
+					{
+						flush(key, b);
+					}
+				}, window);
+				batches.put(key, b);
+				batch = b;
+			}
+			batch.messages.add(message);
+			if (batch.messages.size() >= maxMessages)
+			{
+				batches.remove(key);
+				batch.timeout.cancel();
+				full = batch;
+			}
+		}
+		if (full != null)
+			mailer.dispatch(merge(full.messages));
+		return true;
+	}
+
+	/**
+	 * Sends every buffered message now
+	 */
+	void flushAll()
+	{
+		List<Batch> pending;
+		synchronized (this)
+		{
+			pending = new ArrayList<Batch>(batches.values());
+			batches.clear();
+		}
+		for (Batch batch : pending)
+		{
+			batch.timeout.cancel();
+			mailer.dispatch(merge(batch.messages));
+		}
+	}
+
+	/**
+	 * Sends a batch when its window closes
+	 * @param key the batch key
+	 * @param batch the batch
+	 */
+	private void flush(String key, Batch batch)
+	{
+		synchronized (this)
+		{
+			if (batches.get(key) != batch)
+				return;
+			batches.remove(key);
+		}
+		mailer.dispatch(merge(batch.messages));
+	}
+
+	/**
+	 * Builds the key for the message's priority and recipients, ignoring order and case
+	 * @param message the message
+	 * @return the key
+	 */
+	private static String keyFor(MailMessage message)
+	{
+		String[] destinations = new String[message.destinations.length];
+		for (int i = 0; i < destinations.length; i++)
+			destinations[i] = message.destinations[i].trim().toLowerCase(Locale.US);
+		Arrays.sort(destinations);
+		StringBuilder key = new StringBuilder(String.valueOf(message.priority));
+		for (String destination : destinations)
+			key.append(',').append(destination);
+		return key.toString();
+	}
+
+	/**
+	 * Merges messages into a digest. A single message is returned unchanged.
+	 * @param messages the messages, in the order they were sent
+	 * @return the digest
+	 */
+	static MailMessage merge(List<MailMessage> messages)
+	{
+		MailMessage first = messages.get(0);
+		if (messages.size() == 1)
+			return first;
+
+		boolean hasHtml = false;
+		for (MailMessage m : messages)
+			hasHtml |= m.html != null;
+
+		StringBuilder text = new StringBuilder();
+		StringBuilder html = hasHtml ? new StringBuilder() : null;
+		for (int i = 0; i < messages.size(); i++)
+		{
+			MailMessage m = messages.get(i);
+			if (i > 0)
+			{
+				text.append(TEXT_SEPARATOR);
+				if (html != null)
+					html.append(HTML_SEPARATOR);
+			}
+			if (m.subject != null)
+				text.append(m.subject).append("\n\n");
+			if (m.message != null && m.message.length() > 0)
+				text.append(m.message);
+			else if (m.html != null)
+				text.append(toText(m.html));
+			if (html != null)
+			{
+				html.append("<div>");
+				if (m.subject != null)
+					html.append("<h3>").append(escape(m.subject)).append("</h3>");
+				if (m.html != null)
+					html.append(bodyOf(m.html));
+				else if (m.message != null)
+					html.append("<pre>").append(escape(m.message)).append("</pre>");
+				html.append("</div>");
+			}
+		}
+
+		String subject;
+		if (first.subject == null)
+			subject = messages.size() + " messages";
+		else
+			subject = first.subject + " (+" + (messages.size() - 1) + " more)";
+		MailMessage digest = new MailMessage(first.destinations, subject, text.toString(), null);
+		digest.priority = first.priority;
+		digest.merged = messages;
+		if (html != null)
+			digest.html = "<html><body>" + html + "</body></html>";
+		return digest;
+	}
+
+	/**
+	 * Get the content of an HTML document's {@code <body>}, so that it can be placed inside another document
+	 * @param html the document
+	 * @return the content of the body, or {@code html} unchanged if it has no {@code <body>} element
+	 */
+	static String bodyOf(String html)
+	{
+		int start = indexOfTag(html, "body", 0);
+		if (start < 0)
+			return html;
+		int open = html.indexOf('>', start);
+		if (open < 0)
+			return html;
+		int end = indexOfTag(html, "/body", open);
+		return html.substring(open + 1, end < 0 ? html.length() : end);
+	}
+
+	/**
+	 * Converts HTML to plain text. Tags and comments are removed, the content of {@code <head>},
+	 * {@code <script>} and {@code <style>} is dropped, block elements start a new line, whitespace is 
+	 * collapsed, and character references are decoded.
+	 * @param html the HTML
+	 * @return the text
+	 */
+	static String toText(String html)
+	{
+		StringBuilder text = new StringBuilder(html.length());
+		boolean space = false;
+		int i = 0;
+		int length = html.length();
+		while (i < length)
+		{
+			char c = html.charAt(i);
+			if (c == '<')
+			{
+				if (html.startsWith("<!--", i))
+				{
+					int end = html.indexOf("-->", i + 4);
+					i = end < 0 ? length : end + 3;
+					continue;
+				}
+				int end = html.indexOf('>', i);
+				if (end < 0)
+					break;
+				String name = tagName(html, i + 1, end);
+				i = end + 1;
+				if (name.equals("head") || name.equals("script") || name.equals("style"))
+				{
+					//skip the content, up to the end tag
+					int close = indexOfTag(html, "/" + name, i);
+					if (close < 0)
+						break;
+					end = html.indexOf('>', close);
+					i = end < 0 ? length : end + 1;
+				}
+				else if (isBlock(name))
+				{
+					trimEnd(text);
+					if (text.length() > 0 && text.charAt(text.length() - 1) != '\n')
+						text.append('\n');
+					space = false;
+				}
+				continue;
+			}
+			if (Character.isWhitespace(c))
+			{
+				space = text.length() > 0 && text.charAt(text.length() - 1) != '\n';
+				i++;
+				continue;
+			}
+			if (space)
+			{
+				text.append(' ');
+				space = false;
+			}
+			if (c == '&')
+			{
+				int semi = html.indexOf(';', i);
+				if (semi > i + 1 && semi - i <= 10)
+				{
+					String decoded = decodeEntity(html.substring(i + 1, semi));
+					if (decoded != null)
+					{
+						text.append(decoded);
+						i = semi + 1;
+						continue;
+					}
+				}
+			}
+			text.append(c);
+			i++;
+		}
+		return text.toString().trim();
+	}
+
+	/**
+	 * Finds the next start or end tag with the given name, ignoring case
+	 * @param html the HTML
+	 * @param name the tag name, such as <em>body</em> or <em>/body</em>
+	 * @param from the index from which to search
+	 * @return the index of the tag's {@code <}, or -1 if it is not found
+	 */
+	private static int indexOfTag(String html, String name, int from)
+	{
+		for (int i = html.indexOf('<', from); i >= 0; i = html.indexOf('<', i + 1))
+		{
+			int end = i + 1 + name.length();
+			if (html.regionMatches(true, i + 1, name, 0, name.length())
+			    && (end == html.length() || !Character.isLetterOrDigit(html.charAt(end))))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the name of a tag
+	 * @param html the HTML
+	 * @param start the index after the tag's {@code <}
+	 * @param end the index of the tag's {@code >}
+	 * @return the lower-case name, without the leading {@code /} of an end tag
+	 */
+	private static String tagName(String html, int start, int end)
+	{
+		if (start < end && html.charAt(start) == '/')
+			start++;
+		int i = start;
+		while (i < end && Character.isLetterOrDigit(html.charAt(i)))
+			i++;
+		return html.substring(start, i).toLowerCase(Locale.US);
+	}
+
+	/**
+	 * Determines whether or not an element starts a new line in text
+	 * @param name the lower-case tag name
+	 * @return {@code true} if it is a block element
+	 */
+	private static boolean isBlock(String name)
+	{
+		for (String tag : BLOCK_TAGS)
+		{
+			if (tag.equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes trailing spaces
+	 * @param text the text
+	 */
+	private static void trimEnd(StringBuilder text)
+	{
+		int length = text.length();
+		while (length > 0 && text.charAt(length - 1) == ' ')
+			length--;
+		text.setLength(length);
+	}
+
+	/**
+	 * Decodes a character reference
+	 * @param name the text between {@code &} and {@code ;}, such as <em>amp</em> or <em>#39</em>
+	 * @return the character, or <em>null</em> if the reference is not recognized
+	 */
+	private static String decodeEntity(String name)
+	{
+		if (name.charAt(0) == '#')
+		{
+			try
+			{
+				int code;
+				if (name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X'))
+					code = Integer.parseInt(name.substring(2), 16);
+				else
+					code = Integer.parseInt(name.substring(1));
+				return Character.isValidCodePoint(code) ? new String(Character.toChars(code)) : null;
+			}
+			catch (NumberFormatException e)
+			{
+				return null;
+			}
+		}
+		if (name.equals("amp"))
+			return "&";
+		if (name.equals("lt"))
+			return "<";
+		if (name.equals("gt"))
+			return ">";
+		if (name.equals("quot"))
+			return "\"";
+		if (name.equals("apos"))
+			return "'";
+		if (name.equals("nbsp"))
+			return " ";
+		return null;
+	}
+
+	/**
+	 * Escapes text for use in HTML
+	 * @param text the text
+	 * @return the escaped text
+	 */
+	private static String escape(String text)
+	{
+		StringBuilder builder = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+				case '<' : builder.append("&lt;");
+						   break;
+				case '>' : builder.append("&gt;");
+						   break;
+				case '&' : builder.append("&amp;");
+						   break;
+				case '"' : builder.append("&quot;");
+						   break;
+				default : builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Messages waiting for their window to close
+	 */
+	private static class Batch
+	{
+		/** the buffered messages, in the order they were sent */
+		final List<MailMessage> messages = new ArrayList<MailMessage>();
+		/** closes the window */
+		TimerWheel.Timeout timeout;
+	}
+}
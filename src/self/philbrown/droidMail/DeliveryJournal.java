@@ -0,0 +1,796 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only record of what happened to each message: when it was queued, when it was sent or
+ * failed, and the server's reply. Events are written to a file in batches on a background thread, so
+ * recording adds no latency to {@link Mailer#send(MailMessage)}. The journal is read back when it is
+ * opened, and indexed by journal ID, Message-ID and recipient, so that deliveries can be audited and
+ * failed messages found and sent again.<p>
+ * Only the envelope is recorded, not the message content. For the chunks of a large mailing, only
+ * a summary of the recipients is recorded, so that the journal does not hold the whole list in memory.
+ * @author Phil Brown
+ * @see Mailer#setJournal(DeliveryJournal)
+ */
+public class DeliveryJournal
+{
+	/** logging tag */
+	public static final String TAG = "DeliveryJournal";
+
+	/** How long events are held before they are written, in milliseconds */
+	public static final long FLUSH_DELAY = 1000;
+
+	/** Events are written as soon as this many are waiting */
+	public static final int MAX_BATCH = 256;
+
+	/** Identifies a journal file */
+	private static final int MAGIC = 0x444d4a31;
+
+	/** Size, in bytes, of the smallest event: its type, journal ID and time */
+	private static final int MIN_EVENT_SIZE = 1 + 8 + 8;
+
+	/** Event types, as stored in the file */
+	private static final byte QUEUED = 1, SENT = 2, FAILED = 3;
+
+	/**
+	 * The state of a message
+	 */
+	public static enum Status
+	{
+		/** waiting to be sent */
+		QUEUED,
+		/** accepted by the server */
+		SENT,
+		/** could not be sent */
+		FAILED
+	}
+
+	/**
+	 * Everything known about one message. Entries are immutable; each event replaces the entry.
+	 */
+	public static class Entry
+	{
+		/** the journal ID, unique within the journal */
+		public final long id;
+		/** the recipients */
+		public final String[] recipients;
+		/** the subject */
+		public final String subject;
+		/** the Message-ID header, or <em>null</em> if the message was never built */
+		public final String messageId;
+		/** when the message was queued, in milliseconds since the epoch */
+		public final long queued;
+		/** when the message was sent, or 0 */
+		public final long sent;
+		/** when the message failed, or 0 */
+		public final long failed;
+		/** the server's reply, or the reason the message failed */
+		public final String reply;
+
+		/**
+		 * Constructor
+		 * @param id the journal ID
+		 * @param recipients the recipients
+		 * @param subject the subject
+		 * @param messageId the Message-ID
+		 * @param queued when the message was queued
+		 * @param sent when the message was sent
+		 * @param failed when the message failed
+		 * @param reply the server's reply
+		 */
+		Entry(long id, String[] recipients, String subject, String messageId, long queued, long sent, long failed, String reply)
+		{
+			this.id = id;
+			this.recipients = recipients;
+			this.subject = subject;
+			this.messageId = messageId;
+			this.queued = queued;
+			this.sent = sent;
+			this.failed = failed;
+			this.reply = reply;
+		}
+
+		/**
+		 * Get the state of the message
+		 * @return the status
+		 */
+		public Status getStatus()
+		{
+			if (sent != 0)
+				return Status.SENT;
+			return failed != 0 ? Status.FAILED : Status.QUEUED;
+		}
+
+		/**
+		 * Get the time of the latest event
+		 * @return the time, in milliseconds since the epoch
+		 */
+		public long getLastEventTime()
+		{
+			return Math.max(queued, Math.max(sent, failed));
+		}
+
+		@Override
+		public String toString()
+		{
+			return "#" + id + " " + getStatus() + " " + Arrays.toString(recipients)
+				+ (messageId == null ? "" : " " + messageId) + (reply == null ? "" : ": " + reply);
+		}
+	}
+
+	/** The journal file */
+	private final File file;
+
+	/** Entries by journal ID, oldest first */
+	private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+
+	/** Entry IDs by Message-ID */
+	private final Map<String, Long> byMessageId = new HashMap<String, Long>();
+
+	/** Entry IDs by lower-case recipient address */
+	private final Map<String, List<Long>> byRecipient = new HashMap<String, List<Long>>();
+
+	/** The next journal ID */
+	private long nextId = 1;
+
+	/** Encoded events waiting to be written */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/** Writes to {@link #pending} */
+	private DataOutputStream pendingOut = new DataOutputStream(pending);
+
+	/** Holds the event being encoded */
+	private final ByteArrayOutputStream event = new ByteArrayOutputStream(256);
+
+	/** Writes to {@link #event} */
+	private final DataOutputStream eventOut = new DataOutputStream(event);
+
+	/** Number of events in {@link #pending} */
+	private int pendingCount;
+
+	/** Whether or not a write has been scheduled */
+	private boolean flushScheduled;
+
+	/** Writes batches of events, one at a time */
+	private final ThreadPoolExecutor writer;
+
+	/**
+	 * Constructor. Opens the journal, creating the file if it does not exist, and reads its events.
+	 * An incomplete or corrupt event, such as one left by a crash, is discarded along with everything after it.
+	 * @param file the journal file
+	 * @throws IOException if the file could not be read, or is not a journal
+	 */
+	public DeliveryJournal(File file) throws IOException
+	{
+		this(file, 0);
+	}
+
+	/**
+	 * Constructor. Opens the journal, creating the file if it does not exist, and reads its events. 
+	 * Messages that were sent or failed more than {@code retentionMillis} ago are then removed, and 
+	 * the file is rewritten without them, so the journal does not grow for the lifetime of the app.
+	 * @param file the journal file
+	 * @param retentionMillis how long finished messages are kept, in milliseconds, or 0 to keep them all
+	 * @throws IOException if the file could not be read, or is not a journal
+	 * @see #compact(long)
+	 */
+	public DeliveryJournal(File file, long retentionMillis) throws IOException
+	{
+		this.file = file;
+		load();
+		writer = new ThreadPoolExecutor(0, 1, TransportPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+				                        new LinkedBlockingQueue<Runnable>(), Platform.getInstance().newThreadFactory(TAG));
+		if (retentionMillis > 0)
+			compact(System.currentTimeMillis() - retentionMillis);
+	}
+
+	/**
+	 * Reads the journal file and builds the indexes
+	 * @throws IOException if the file could not be read
+	 */
+	private void load() throws IOException
+	{
+		if (!file.exists() || file.length() == 0)
+		{
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			try
+			{
+				out.writeInt(MAGIC);
+			}
+			finally
+			{
+				out.close();
+			}
+			return;
+		}
+		long valid;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a delivery journal");
+			valid = 4;
+			while (true)
+			{
+				int length;
+				try
+				{
+					length = in.readInt();
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				if (length < MIN_EVENT_SIZE || length > file.length() - valid - 4)
+				{
+					//a corrupt length, or an event cut short by a crash
+					break;
+				}
+				byte[] data = new byte[length];
+				try
+				{
+					in.readFully(data);
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				try
+				{
+					apply(new DataInputStream(new ByteArrayInputStream(data)), length);
+				}
+				catch (IOException e)
+				{
+					Platform.getInstance().warn(TAG, "Malformed event in " + file, e);
+					break;
+				}
+				valid += 4 + length;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		if (valid < file.length())
+		{
+			Platform.getInstance().warn(TAG, "Discarding incomplete or corrupt events at the end of " + file, null);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				raf.setLength(valid);
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Records that a message was queued, and assigns its journal ID
+	 * @param message the message
+	 * @return the journal ID
+	 */
+	long queued(MailMessage message)
+	{
+		long time = System.currentTimeMillis();
+		String[] recipients;
+		if (message.recipientSummary != null)
+			recipients = new String[] { message.recipientSummary };
+		else
+			recipients = message.destinations == null ? new String[0] : message.destinations.clone();
+		synchronized (this)
+		{
+			long id = nextId++;
+			message.journalId = id;
+			try
+			{
+				DataOutputStream out = startEvent(QUEUED, id, time);
+				out.writeInt(recipients.length);
+				for (String recipient : recipients)
+					MailMessage.writeString(out, recipient);
+				MailMessage.writeString(out, message.subject);
+				endEvent();
+			}
+			catch (IOException e)
+			{
+				//cannot happen when writing to memory
+			}
+			put(new Entry(id, recipients, message.subject, null, time, 0, 0, null));
+			return id;
+		}
+	}
+
+	/**
+	 * Records that a message was sent
+	 * @param message the message
+	 * @param messageId the Message-ID header
+	 * @param reply the server's reply
+	 */
+	void sent(MailMessage message, String messageId, String reply)
+	{
+		finished(message, SENT, messageId, reply);
+	}
+
+	/**
+	 * Records that a message failed
+	 * @param message the message
+	 * @param messageId the Message-ID header, or <em>null</em> if the message was never built
+	 * @param reply the server's reply, or the reason the message failed
+	 */
+	void failed(MailMessage message, String messageId, String reply)
+	{
+		finished(message, FAILED, messageId, reply);
+	}
+
+	/**
+	 * Records the outcome of a message
+	 * @param message the message
+	 * @param type {@link #SENT} or {@link #FAILED}
+	 * @param messageId the Message-ID header
+	 * @param reply the server's reply
+	 */
+	private void finished(MailMessage message, byte type, String messageId, String reply)
+	{
+		if (message.journalId <= 0)
+			return;
+		long time = System.currentTimeMillis();
+		synchronized (this)
+		{
+			try
+			{
+				DataOutputStream out = startEvent(type, message.journalId, time);
+				MailMessage.writeString(out, messageId);
+				MailMessage.writeString(out, reply);
+				endEvent();
+			}
+			catch (IOException e)
+			{
+				//cannot happen when writing to memory
+			}
+			update(message.journalId, type, time, messageId, reply);
+		}
+	}
+
+	/**
+	 * Starts encoding an event
+	 * @param type the event type
+	 * @param id the journal ID
+	 * @param time the event time
+	 * @return the stream to which the rest of the event is written
+	 * @throws IOException never
+	 */
+	private DataOutputStream startEvent(byte type, long id, long time) throws IOException
+	{
+		event.reset();
+		eventOut.writeByte(type);
+		eventOut.writeLong(id);
+		eventOut.writeLong(time);
+		return eventOut;
+	}
+
+	/**
+	 * Adds the encoded event to the pending batch, and schedules the batch to be written
+	 * @throws IOException never
+	 */
+	private void endEvent() throws IOException
+	{
+		pendingOut.writeInt(event.size());
+		event.writeTo(pending);
+		pendingCount++;
+		if (pendingCount >= MAX_BATCH)
+		{
+			flushScheduled = true;
+			submitWrite();
+		}
+		else if (!flushScheduled)
+		{
+			flushScheduled = true;
+			TimerWheel.getInstance().schedule(new Runnable() {
+				@Override
+				public void run()
+				{
+					submitWrite();
+				}
+			}, FLUSH_DELAY);
+		}
+	}
+
+	/**
+	 * Writes the pending batch on the writer thread
+	 */
+	private void submitWrite()
+	{
+		try
+		{
+			writer.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					write();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			//closed
+		}
+	}
+
+	/**
+	 * Appends the pending batch to the file in a single write. Batches are taken and written under 
+	 * one lock, so they reach the file in the order their events were recorded.
+	 */
+	private void write()
+	{
+		synchronized (file)
+		{
+			byte[] batch;
+			synchronized (this)
+			{
+				flushScheduled = false;
+				if (pendingCount == 0)
+					return;
+				batch = pending.toByteArray();
+				pending = new ByteArrayOutputStream();
+				pendingOut = new DataOutputStream(pending);
+				pendingCount = 0;
+			}
+			try
+			{
+				FileOutputStream out = new FileOutputStream(file, true);
+				try
+				{
+					out.write(batch);
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+			catch (IOException e)
+			{
+				Platform.getInstance().warn(TAG, "Could not write " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes any pending events now, and waits until they have been written
+	 */
+	public void flush()
+	{
+		write();
+	}
+
+	/**
+	 * Writes any pending events and stops the writer thread. Events recorded afterwards are kept in
+	 * memory only.
+	 */
+	public void close()
+	{
+		flush();
+		writer.shutdown();
+	}
+
+	/**
+	 * Removes messages that were sent or failed before the given time, and rewrites the file without 
+	 * them. Queued messages are always kept. The file is written in full to a temporary file, which then 
+	 * replaces the journal, so a crash during compaction loses nothing.
+	 * @param olderThan messages whose latest event is before this time, in milliseconds since the epoch, are removed
+	 * @return the number of messages removed
+	 */
+	public int compact(long olderThan)
+	{
+		synchronized (file)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			byte[] batch;
+			int removed = 0;
+			synchronized (this)
+			{
+				Iterator<Entry> it = entries.values().iterator();
+				while (it.hasNext())
+				{
+					Entry entry = it.next();
+					if (entry.getStatus() != Status.QUEUED && entry.getLastEventTime() < olderThan)
+					{
+						it.remove();
+						unindex(entry);
+						removed++;
+					}
+				}
+				if (removed == 0)
+					return 0;
+				try
+				{
+					out.writeInt(MAGIC);
+					for (Entry entry : entries.values())
+						writeEntry(out, entry);
+				}
+				catch (IOException e)
+				{
+					//cannot happen when writing to memory
+				}
+				//pending events are already part of the entries
+				batch = pending.toByteArray();
+				pending = new ByteArrayOutputStream();
+				pendingOut = new DataOutputStream(pending);
+				pendingCount = 0;
+			}
+			File temp = new File(file.getPath() + ".tmp");
+			try
+			{
+				FileOutputStream fos = new FileOutputStream(temp);
+				try
+				{
+					bytes.writeTo(fos);
+				}
+				finally
+				{
+					fos.close();
+				}
+				if (!temp.renameTo(file))
+					throw new IOException("Could not replace " + file);
+			}
+			catch (IOException e)
+			{
+				Platform.getInstance().warn(TAG, "Could not compact " + file, e);
+				temp.delete();
+				//keep the events that were waiting to be written
+				try
+				{
+					FileOutputStream fos = new FileOutputStream(file, true);
+					try
+					{
+						fos.write(batch);
+					}
+					finally
+					{
+						fos.close();
+					}
+				}
+				catch (IOException e2)
+				{
+					Platform.getInstance().warn(TAG, "Could not write " + file, e2);
+				}
+			}
+			return removed;
+		}
+	}
+
+	/**
+	 * Writes the events that recreate an entry
+	 * @param out the stream
+	 * @param entry the entry
+	 * @throws IOException if the events could not be written
+	 */
+	private void writeEntry(DataOutputStream out, Entry entry) throws IOException
+	{
+		DataOutputStream e = startEvent(QUEUED, entry.id, entry.queued);
+		e.writeInt(entry.recipients.length);
+		for (String recipient : entry.recipients)
+			MailMessage.writeString(e, recipient);
+		MailMessage.writeString(e, entry.subject);
+		out.writeInt(event.size());
+		event.writeTo(out);
+		if (entry.getStatus() != Status.QUEUED)
+		{
+			e = startEvent(entry.sent != 0 ? SENT : FAILED, entry.id, entry.getLastEventTime());
+			MailMessage.writeString(e, entry.messageId);
+			MailMessage.writeString(e, entry.reply);
+			out.writeInt(event.size());
+			event.writeTo(out);
+		}
+	}
+
+	/**
+	 * Removes an entry from the Message-ID and recipient indexes
+	 * @param entry the entry
+	 */
+	private void unindex(Entry entry)
+	{
+		if (entry.messageId != null)
+			byMessageId.remove(entry.messageId);
+		for (String recipient : entry.recipients)
+		{
+			if (recipient == null)
+				continue;
+			String key = addressKey(recipient);
+			List<Long> ids = byRecipient.get(key);
+			if (ids != null)
+			{
+				ids.remove(Long.valueOf(entry.id));
+				if (ids.isEmpty())
+					byRecipient.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Applies an event read from the file
+	 * @param in the event
+	 * @param size the size of the event, in bytes
+	 * @throws IOException if the event is malformed
+	 */
+	private synchronized void apply(DataInputStream in, int size) throws IOException
+	{
+		byte type = in.readByte();
+		long id = in.readLong();
+		long time = in.readLong();
+		nextId = Math.max(nextId, id + 1);
+		if (type == QUEUED)
+		{
+			String[] recipients = new String[MailMessage.readCount(in, size)];
+			for (int i = 0; i < recipients.length; i++)
+				recipients[i] = MailMessage.readString(in, size);
+			put(new Entry(id, recipients, MailMessage.readString(in, size), null, time, 0, 0, null));
+		}
+		else
+		{
+			String messageId = MailMessage.readString(in, size);
+			update(id, type, time, messageId, MailMessage.readString(in, size));
+		}
+	}
+
+	/**
+	 * Adds a new entry to the indexes
+	 * @param entry the entry
+	 */
+	private void put(Entry entry)
+	{
+		entries.put(entry.id, entry);
+		for (String recipient : entry.recipients)
+		{
+			if (recipient == null)
+				continue;
+			String key = addressKey(recipient);
+			List<Long> ids = byRecipient.get(key);
+			if (ids == null)
+			{
+				ids = new ArrayList<Long>(2);
+				byRecipient.put(key, ids);
+			}
+			ids.add(entry.id);
+		}
+	}
+
+	/**
+	 * Replaces an entry with the outcome of its message
+	 * @param id the journal ID
+	 * @param type {@link #SENT} or {@link #FAILED}
+	 * @param time the event time
+	 * @param messageId the Message-ID
+	 * @param reply the server's reply
+	 */
+	private void update(long id, byte type, long time, String messageId, String reply)
+	{
+		Entry old = entries.get(id);
+		if (old == null)
+			return;
+		Entry entry = new Entry(id, old.recipients, old.subject, messageId != null ? messageId : old.messageId,
+				                old.queued, type == SENT ? time : old.sent, type == FAILED ? time : old.failed, reply);
+		entries.put(id, entry);
+		if (entry.messageId != null)
+			byMessageId.put(entry.messageId, id);
+	}
+
+	/**
+	 * Get the index key for an address, which ignores case and any display name
+	 * @param address the address
+	 * @return the key
+	 */
+	private static String addressKey(String address)
+	{
+		int open = address.lastIndexOf('<');
+		int close = address.lastIndexOf('>');
+		if (open >= 0 && close > open)
+			address = address.substring(open + 1, close);
+		return address.trim().toLowerCase(Locale.US);
+	}
+
+	/**
+	 * Get an entry by journal ID
+	 * @param id the journal ID
+	 * @return the entry, or <em>null</em> if there is none
+	 * @see Mailer#send(MailMessage)
+	 */
+	public synchronized Entry get(long id)
+	{
+		return entries.get(id);
+	}
+
+	/**
+	 * Get an entry by its Message-ID header
+	 * @param messageId the Message-ID, including the angle brackets
+	 * @return the entry, or <em>null</em> if there is none
+	 */
+	public synchronized Entry getByMessageId(String messageId)
+	{
+		Long id = byMessageId.get(messageId);
+		return id == null ? null : entries.get(id);
+	}
+
+	/**
+	 * Get every message sent, or to be sent, to an address
+	 * @param address the address. Case and display names are ignored.
+	 * @return the entries, oldest first
+	 */
+	public synchronized List<Entry> findByRecipient(String address)
+	{
+		List<Long> ids = byRecipient.get(addressKey(address));
+		if (ids == null)
+			return Collections.emptyList();
+		List<Entry> result = new ArrayList<Entry>(ids.size());
+		for (Long id : ids)
+			result.add(entries.get(id));
+		return result;
+	}
+
+	/**
+	 * Get the messages in a given state whose latest event happened at or after the given time
+	 * @param status the state, or <em>null</em> for any state
+	 * @param since the earliest event time, in milliseconds since the epoch
+	 * @return the entries, oldest first
+	 */
+	public synchronized List<Entry> find(Status status, long since)
+	{
+		List<Entry> result = new ArrayList<Entry>();
+		for (Entry entry : entries.values())
+		{
+			if ((status == null || entry.getStatus() == status) && entry.getLastEventTime() >= since)
+				result.add(entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of messages in the journal
+	 * @return the number of entries
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+}
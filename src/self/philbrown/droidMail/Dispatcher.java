@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.LinkedList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import self.philbrown.droidMail.MailMessage.Priority;
+
+/**
+ * Schedules outgoing messages onto a bounded number of SMTP connections. Each {@link Priority} has
+ * its own queue. When several queues are waiting, connections are shared between them in proportion
+ * to their weights using smooth weighted round-robin, and some connections are reserved for
+ * {@link Priority#TRANSACTIONAL} mail, so it is never stuck behind a bulk mailing.
+ * @author Phil Brown
+ */
+class Dispatcher
+{
+	/** Priorities, indexed by ordinal */
+	private static final Priority[] PRIORITIES = Priority.values();
+
+	/** Sends messages */
+	private final Mailer mailer;
+
+	/** Waiting messages of each priority */
+	private final LinkedList<MailMessage>[] queues;
+
+	/** Smooth weighted round-robin state for each priority */
+	private final int[] credit = new int[PRIORITIES.length];
+
+	/** Messages of each priority being sent */
+	private final int[] active = new int[PRIORITIES.length];
+
+	/** Largest number of messages sent at once */
+	private int maxConnections;
+
+	/** Connections that only {@link Priority#TRANSACTIONAL} messages may use */
+	private int reservedConnections;
+
+	/** Runs sends. Threads are started on demand and stop when idle. The dispatcher bounds how many run at once. */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Constructor
+	 * @param mailer sends the messages
+	 * @param maxConnections largest number of messages sent at once
+	 * @param reservedConnections connections reserved for transactional mail
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	Dispatcher(Mailer mailer, int maxConnections, int reservedConnections)
+	{
+		this.mailer = mailer;
+		queues = new LinkedList[PRIORITIES.length];
+		for (int i = 0; i < queues.length; i++)
+			queues[i] = new LinkedList<MailMessage>();
+		executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, TransportPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+				                          new SynchronousQueue<Runnable>(), Platform.getInstance().newThreadFactory(Mailer.TAG));
+		setLimits(maxConnections, reservedConnections);
+	}
+
+	/**
+	 * Sets the connection limits
+	 * @param maxConnections largest number of messages sent at once. Must be at least 1.
+	 * @param reservedConnections connections reserved for transactional mail. Must be less than {@code maxConnections}.
+	 */
+	void setLimits(int maxConnections, int reservedConnections)
+	{
+		if (maxConnections < 1 || reservedConnections < 0 || reservedConnections >= maxConnections)
+			throw new IllegalArgumentException("Invalid connection limits " + maxConnections + "/" + reservedConnections);
+		synchronized (this)
+		{
+			this.maxConnections = maxConnections;
+			this.reservedConnections = reservedConnections;
+		}
+		pump();
+	}
+
+	/**
+	 * Queues a message to be sent
+	 * @param message the message
+	 */
+	void submit(MailMessage message)
+	{
+		Priority priority = message.priority == null ? Priority.NORMAL : message.priority;
+		synchronized (this)
+		{
+			queues[priority.ordinal()].add(message);
+		}
+		pump();
+	}
+
+	/**
+	 * Get the largest number of messages sent at once
+	 * @return the connection limit
+	 */
+	synchronized int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * Runs a background task, such as opening a connection, on one of the dispatcher's threads
+	 * @param task the task
+	 */
+	void execute(Runnable task)
+	{
+		executor.execute(task);
+	}
+
+	/**
+	 * Get the number of messages waiting to be sent
+	 * @param priority the priority
+	 * @return the number of queued messages of {@code priority}
+	 */
+	synchronized int queued(Priority priority)
+	{
+		return queues[priority.ordinal()].size();
+	}
+
+	/**
+	 * Starts sending as many waiting messages as the connection limits allow
+	 */
+	private void pump()
+	{
+		while (true)
+		{
+			final MailMessage message;
+			final int lane;
+			synchronized (this)
+			{
+				lane = next();
+				if (lane < 0)
+					return;
+				message = queues[lane].removeFirst();
+				active[lane]++;
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						mailer.deliver(message);
+					}
+					finally
+					{
+						synchronized (Dispatcher.this)
+						{
+							active[lane]--;
+						}
+						pump();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Chooses the queue from which to send the next message. Must be called while holding the lock.
+	 * @return the ordinal of the chosen priority, or -1 if nothing can be sent right now
+	 */
+	private int next()
+	{
+		int total = 0;
+		for (int count : active)
+			total += count;
+		if (total >= maxConnections)
+			return -1;
+		int unreserved = total - active[Priority.TRANSACTIONAL.ordinal()];
+		boolean shared = unreserved < maxConnections - reservedConnections;
+
+		int best = -1;
+		int weights = 0;
+		for (int i = 0; i < PRIORITIES.length; i++)
+		{
+			if (queues[i].isEmpty() || (PRIORITIES[i] != Priority.TRANSACTIONAL && !shared))
+				continue;
+			credit[i] += PRIORITIES[i].weight;
+			weights += PRIORITIES[i].weight;
+			if (best < 0 || credit[i] > credit[best])
+				best = i;
+		}
+		if (best >= 0)
+			credit[best] -= weights;
+		return best;
+	}
+}
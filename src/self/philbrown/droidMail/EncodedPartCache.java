@@ -0,0 +1,856 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import com.sun.mail.util.BASE64EncoderStream;
+
+/**
+ * Caches the base64 encoding of files that are sent repeatedly, such as the logos in a branded HTML
+ * template, or a daily report attached to hundreds of messages. Each file is read and encoded once;
+ * later messages reuse the encoded bytes through a {@link PreencodedMimeBodyPart}, so JavaMail writes
+ * them without encoding them again.<p>
+ * Files are looked up by path, modification time and size, so an edited file is encoded again, and
+ * encoded content is stored by a hash of the original bytes and of what else the encoding depends on
+ * (the entry name inside a zip, or the content type derived from the file name), so identical files at
+ * different paths share one entry. The least recently used content is evicted once the cache holds more than its byte
+ * limit. If a spill directory is set with {@link #setSpillDirectory(File, long)}, evicted content is
+ * moved there and streamed from disk by later messages, rather than encoded again. A spill file used by
+ * a message that has been built is not deleted until the message is {@link #release(Part) released}.
+ * @author Phil Brown
+ */
+public class EncodedPartCache
+{
+	/** Default limit, in bytes, of encoded content held in memory by the cache */
+	public static final long DEFAULT_MAX_BYTES = 4*1024*1024;
+
+	/** Maximum number of file lookups remembered */
+	private static final int MAX_INDEX_SIZE = 1024;
+
+	/** Shared instance */
+	private static EncodedPartCache instance;
+
+	/** Maps file lookup keys to content hashes */
+	private Map<String, String> index = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+		{
+			return size() > MAX_INDEX_SIZE;
+		}
+	};
+
+	/** Encoded content held in memory, by content hash, in least- to most-recently used order */
+	private Map<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/** Encoded content spilled to disk, by content hash, in least- to most-recently used order */
+	private Map<String, Entry> disk = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/** Total encoded bytes held in memory */
+	private long memorySize;
+
+	/** Total encoded bytes held on disk */
+	private long diskSize;
+
+	/** Maximum encoded bytes to hold in memory */
+	private long maxBytes;
+
+	/** Directory for spilled content, or <em>null</em> if spilling is disabled */
+	private File spillDirectory;
+
+	/** Maximum encoded bytes to hold on disk */
+	private long maxDiskBytes;
+
+	/** Spill files used by built messages, with the number of parts using each */
+	private final Map<File, Integer> leases = new HashMap<File, Integer>();
+
+	/** Spill files evicted while in use. Each is deleted once its last part is released. */
+	private final Set<File> retired = new HashSet<File>();
+
+	/**
+	 * Constructor
+	 * @param maxBytes the maximum number of encoded bytes to hold in memory
+	 */
+	public EncodedPartCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the shared cache
+	 * @return the shared {@code EncodedPartCache}
+	 */
+	public static synchronized EncodedPartCache getInstance()
+	{
+		if (instance == null)
+			instance = new EncodedPartCache(DEFAULT_MAX_BYTES);
+		return instance;
+	}
+
+	/**
+	 * Sets the maximum number of encoded bytes to hold in memory, evicting entries if needed
+	 * @param maxBytes the new limit
+	 */
+	public void setMaxBytes(long maxBytes)
+	{
+		List<Entry> evicted;
+		synchronized (this)
+		{
+			this.maxBytes = maxBytes;
+			evicted = trim();
+		}
+		spill(evicted);
+	}
+
+	/**
+	 * Enables spilling evicted content to disk. Content on disk is streamed when sent, so it costs
+	 * no memory, but saves encoding the file again.
+	 * @param directory the directory to hold spilled content, such as a subdirectory of the app's cache
+	 * directory. Its contents are managed by this cache: spill files it does not know about, such as 
+	 * those left by an earlier process, are deleted. <em>null</em> disables spilling.
+	 * @param maxDiskBytes the maximum number of encoded bytes to hold on disk
+	 */
+	public synchronized void setSpillDirectory(File directory, long maxDiskBytes)
+	{
+		if (directory != null)
+		{
+			directory.mkdirs();
+			if (!directory.equals(spillDirectory))
+				deleteUnknownFiles(directory);
+		}
+		spillDirectory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		if (directory == null)
+		{
+			for (Entry entry : disk.values())
+				delete(entry.file);
+			disk.clear();
+			diskSize = 0;
+		}
+		trimDisk();
+	}
+
+	/**
+	 * Deletes the spill files in a directory that are not held by this cache. Must be called while 
+	 * holding this cache's lock.
+	 * @param directory the spill directory
+	 */
+	private void deleteUnknownFiles(File directory)
+	{
+		Set<File> known = new HashSet<File>(leases.keySet());
+		for (Entry entry : disk.values())
+			known.add(entry.file);
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+		{
+			String name = file.getName();
+			boolean spill = name.endsWith(".b64") || (name.startsWith("part") && name.endsWith(".tmp"));
+			if (spill && !known.contains(file))
+				file.delete();
+		}
+	}
+
+	/**
+	 * Deletes a spill file, or defers deleting it until the parts using it are released. Must be called 
+	 * while holding this cache's lock.
+	 * @param file the spill file
+	 */
+	private void delete(File file)
+	{
+		if (leases.containsKey(file))
+			retired.add(file);
+		else
+			file.delete();
+	}
+
+	/**
+	 * Removes all entries, including those spilled to disk
+	 */
+	public synchronized void clear()
+	{
+		for (Entry entry : disk.values())
+			delete(entry.file);
+		index.clear();
+		memory.clear();
+		disk.clear();
+		memorySize = 0;
+		diskSize = 0;
+	}
+
+	/**
+	 * Creates a body part for the given file, encoding the file only if it is not already cached
+	 * @param file the file
+	 * @return a base64 body part containing the file. The caller may set its headers, such as the
+	 * file name or content ID. Once the message holding it has been sent, pass it to {@link #release(Part)}.
+	 * @throws IOException if the file could not be read
+	 * @throws MessagingException if the part could not be created
+	 */
+	public MimeBodyPart getPart(File file) throws IOException, MessagingException
+	{
+		Entry entry = get(file, false);
+		if (entry != null)
+			return createPart(entry);
+		
+		//too large to cache, so stream it from the file
+		MimeBodyPart part = new MimeBodyPart();
+		part.setDataHandler(new DataHandler(new FileDataSource(file)));
+		part.setHeader("Content-Transfer-Encoding", "base64");
+		return part;
+	}
+
+	/**
+	 * Get the cached encoding of the given file, encoding the file if needed. Files whose encoding is
+	 * larger than the memory limit are encoded straight to the spill directory.
+	 * @param file the file
+	 * @param zip {@code true} to zip the file before encoding it. If zipping saves less than ten
+	 * percent, the file is encoded as-is and the entry will report that it is not zipped.
+	 * @return the entry, or <em>null</em> if the file is too large to cache
+	 * @throws IOException if the file could not be read
+	 */
+	Entry get(File file, boolean zip) throws IOException
+	{
+		String key = key(file, zip);
+		Entry cached = peek(key);
+		if (cached != null)
+			return cached;
+
+		File directory;
+		long limit;
+		synchronized (this)
+		{
+			directory = spillDirectory;
+			limit = maxBytes;
+		}
+		if (TransferEncoding.base64Size(file.length()) > limit)
+		{
+			if (directory == null)
+				return null;
+			return encodeToDisk(file, zip, directory);
+		}
+
+		Entry entry = encode(file, zip);
+		List<Entry> evicted;
+		synchronized (this)
+		{
+			index.put(key, entry.hash);
+			Entry existing = memory.get(entry.hash);
+			if (existing != null)
+				return existing;
+			memory.put(entry.hash, entry);
+			memorySize += entry.encoded.length;
+			evicted = trim();
+		}
+		spill(evicted);
+		return entry;
+	}
+
+	/**
+	 * Get the cached encoding of the given file, without encoding it
+	 * @param file the file
+	 * @param zip whether or not the file is zipped before encoding
+	 * @return the entry, or <em>null</em> if the file has not been encoded, or its encoding has been evicted
+	 */
+	Entry peek(File file, boolean zip)
+	{
+		return peek(key(file, zip));
+	}
+
+	/**
+	 * Get a cached encoding
+	 * @param key the key of the file
+	 * @return the entry, or <em>null</em> if it is not cached
+	 */
+	private synchronized Entry peek(String key)
+	{
+		String hash = index.get(key);
+		if (hash == null)
+			return null;
+		Entry entry = memory.get(hash);
+		if (entry == null)
+			entry = disk.get(hash);
+		if (entry != null && (entry.file == null || entry.file.exists()))
+			return entry;
+		return null;
+	}
+
+	/**
+	 * Get the key under which the encoding of a file is indexed. The key changes if the file is modified.
+	 * @param file the file
+	 * @param zip whether or not the file is zipped before encoding
+	 * @return the key
+	 */
+	private static String key(File file, boolean zip)
+	{
+		return file.getAbsolutePath() + '|' + file.lastModified() + '|' + file.length() + '|' + zip;
+	}
+
+	/**
+	 * Creates a body part that writes the given entry's encoded content as-is
+	 * @param entry the entry
+	 * @return the body part
+	 * @throws MessagingException if the part could not be created
+	 */
+	MimeBodyPart createPart(final Entry entry) throws MessagingException
+	{
+		MimeBodyPart part = new PreencodedMimeBodyPart("base64");
+		byte[] encoded = entry.encoded;
+		if (encoded != null)
+		{
+			part.setDataHandler(new DataHandler(new ByteArrayDataSource(encoded, entry.contentType)));
+		}
+		else
+		{
+			synchronized (this)
+			{
+				Integer count = leases.get(entry.file);
+				leases.put(entry.file, count == null ? 1 : count + 1);
+			}
+			part.setDataHandler(new DataHandler(new SpillDataSource(entry)));
+		}
+		return part;
+	}
+
+	/**
+	 * Releases the spill files used by the parts of a message that has been sent or has failed, so 
+	 * that they can be deleted once evicted. Each part is released once, however often this is called.
+	 * @param part the message, or one of its parts
+	 */
+	public void release(Part part)
+	{
+		try
+		{
+			DataHandler handler = part.getDataHandler();
+			if (handler != null && handler.getDataSource() instanceof SpillDataSource)
+			{
+				((SpillDataSource) handler.getDataSource()).release();
+				return;
+			}
+			if (part.isMimeType("multipart/*"))
+			{
+				Object content = part.getContent();
+				if (content instanceof Multipart)
+				{
+					Multipart multipart = (Multipart) content;
+					for (int i = 0; i < multipart.getCount(); i++)
+						release(multipart.getBodyPart(i));
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			Platform.getInstance().warn(Mailer.TAG, "Could not release message parts", e);
+		}
+	}
+
+	/**
+	 * Releases one use of a spill file, deleting it if it was evicted while in use
+	 * @param file the spill file
+	 */
+	private synchronized void unlease(File file)
+	{
+		Integer count = leases.get(file);
+		if (count == null)
+			return;
+		if (count > 1)
+		{
+			leases.put(file, count - 1);
+			return;
+		}
+		leases.remove(file);
+		if (retired.remove(file))
+			file.delete();
+	}
+
+	/**
+	 * Evicts the least recently used content from memory until it is within its limit. Must be
+	 * called while holding this cache's lock.
+	 * @return the evicted entries, which should be passed to {@link #spill(List)} once the lock is released
+	 */
+	private List<Entry> trim()
+	{
+		List<Entry> evicted = new ArrayList<Entry>();
+		Iterator<Entry> it = memory.values().iterator();
+		while (memorySize > maxBytes && it.hasNext())
+		{
+			Entry entry = it.next();
+			memorySize -= entry.encoded.length;
+			it.remove();
+			evicted.add(entry);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Evicts the least recently used content from disk until it is within its limit. Must be called
+	 * while holding this cache's lock.
+	 */
+	private void trimDisk()
+	{
+		Iterator<Entry> it = disk.values().iterator();
+		while (diskSize > maxDiskBytes && it.hasNext())
+		{
+			Entry entry = it.next();
+			diskSize -= entry.encodedSize;
+			delete(entry.file);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Writes the given evicted entries to the spill directory, if one is set. File I/O is done
+	 * without holding this cache's lock.
+	 * @param evicted entries evicted from memory
+	 */
+	private void spill(List<Entry> evicted)
+	{
+		File directory;
+		synchronized (this)
+		{
+			directory = spillDirectory;
+		}
+		if (directory == null)
+			return;
+		for (Entry entry : evicted)
+		{
+			if (entry.encoded.length > maxDiskBytes)
+				continue;
+			File file = new File(directory, entry.hash + ".b64");
+			synchronized (this)
+			{
+				if (retired.remove(file))
+				{
+					//still on disk for a message that uses it, with the same content
+					add(entry.spilledTo(file));
+					continue;
+				}
+			}
+			OutputStream out = null;
+			try
+			{
+				out = new FileOutputStream(file);
+				out.write(entry.encoded);
+				out.close();
+				out = null;
+			}
+			catch (IOException e)
+			{
+				file.delete();
+				continue;
+			}
+			finally
+			{
+				if (out != null)
+				{
+					try
+					{
+						out.close();
+					}
+					catch (IOException e)
+					{
+						//ignore
+					}
+				}
+			}
+			synchronized (this)
+			{
+				if (spillDirectory == null || memory.containsKey(entry.hash))
+				{
+					//re-added or spilling was disabled while writing
+					file.delete();
+					continue;
+				}
+				add(entry.spilledTo(file));
+			}
+		}
+	}
+
+	/**
+	 * Adds a spilled entry to the disk entries, and evicts others if needed. Must be called while holding 
+	 * this cache's lock.
+	 * @param spilled the entry
+	 */
+	private void add(Entry spilled)
+	{
+		retired.remove(spilled.file);
+		Entry old = disk.put(spilled.hash, spilled);
+		if (old != null)
+			diskSize -= old.encodedSize;
+		diskSize += spilled.encodedSize;
+		trimDisk();
+	}
+
+	/**
+	 * Encodes the given file directly into the spill directory, and adds it to the disk entries
+	 * @param file the file
+	 * @param zip whether or not to zip the file
+	 * @param directory the spill directory
+	 * @return the new entry, or <em>null</em> if it is larger than the disk limit
+	 * @throws IOException if the file could not be read or the encoding could not be written
+	 */
+	private Entry encodeToDisk(File file, boolean zip, File directory) throws IOException
+	{
+		File temp = File.createTempFile("part", ".tmp", directory);
+		Entry entry;
+		OutputStream out = new FileOutputStream(temp);
+		try
+		{
+			entry = encode(file, zip, out);
+		}
+		catch (IOException e)
+		{
+			temp.delete();
+			throw e;
+		}
+		finally
+		{
+			out.close();
+		}
+		
+		synchronized (this)
+		{
+			index.put(key(file, zip), entry.hash);
+			Entry existing = disk.get(entry.hash);
+			if (existing != null && existing.file.exists())
+			{
+				temp.delete();
+				return existing;
+			}
+			if (entry.encodedSize > maxDiskBytes || spillDirectory == null)
+			{
+				temp.delete();
+				return null;
+			}
+			File spillFile = new File(directory, entry.hash + ".b64");
+			if (!temp.renameTo(spillFile))
+			{
+				temp.delete();
+				return null;
+			}
+			Entry spilled = entry.spilledTo(spillFile);
+			add(spilled);
+			return spilled;
+		}
+	}
+
+	/**
+	 * Reads, optionally zips, and base64 encodes the given file into memory
+	 * @param file the file
+	 * @param zip whether or not to zip the file
+	 * @return the new entry
+	 * @throws IOException if the file could not be read
+	 */
+	private static Entry encode(File file, boolean zip) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) TransferEncoding.base64Size(file.length()));
+		Entry entry = encode(file, zip, bytes);
+		byte[] encoded = bytes.toByteArray();
+		return new Entry(entry.hash, encoded, null, encoded.length, entry.contentType, entry.originalSize, entry.rawSize, entry.zipped);
+	}
+
+	/**
+	 * Reads, optionally zips, and base64 encodes the given file in a single pass, hashing the original
+	 * content as it is read
+	 * @param file the file
+	 * @param zip whether or not to zip the file
+	 * @param target receives the encoded content. It is not closed.
+	 * @return an entry describing the content, without the content itself
+	 * @throws IOException if the file could not be read
+	 */
+	private static Entry encode(File file, boolean zip, OutputStream target) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+		long originalSize = file.length();
+		CountingOutputStream counter = new CountingOutputStream(new BASE64EncoderStream(new UnclosedOutputStream(target)));
+		OutputStream out = counter;
+		ZipOutputStream zipOut = null;
+		if (zip)
+		{
+			zipOut = new ZipOutputStream(counter);
+			zipOut.putNextEntry(new ZipEntry(file.getName()));
+			out = zipOut;
+		}
+
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		if (zipOut != null)
+		{
+			zipOut.closeEntry();
+			zipOut.finish();
+		}
+		counter.close();
+
+		if (zip && counter.count > originalSize - originalSize/10)
+		{
+			//not worth making the recipient unzip it
+			if (target instanceof ByteArrayOutputStream)
+				((ByteArrayOutputStream) target).reset();
+			else if (target instanceof FileOutputStream)
+				((FileOutputStream) target).getChannel().truncate(0).position(0);
+			return encode(file, false, target);
+		}
+
+		String contentType = zip ? "application/zip" : FileTypeMap.getDefaultFileTypeMap().getContentType(file);
+		//a zip embeds the file name, and an unzipped part carries the type derived from it
+		digest.update((byte) 0);
+		digest.update((zip ? file.getName() : contentType).getBytes("UTF-8"));
+		StringBuilder hash = new StringBuilder(zip ? "z" : "");
+		for (byte b : digest.digest())
+		{
+			hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return new Entry(hash.toString(), null, null, TransferEncoding.base64Size(counter.count), contentType, originalSize, counter.count, zip);
+	}
+
+	/**
+	 * Encoded file content, held either in memory or in a spill file
+	 */
+	static class Entry
+	{
+		/** hash of the original content and the zip entry name or content type, prefixed with <em>z</em> if zipped */
+		final String hash;
+		/** base64 encoded content, or <em>null</em> if it has been spilled to {@link #file} */
+		final byte[] encoded;
+		/** spill file holding the encoded content, or <em>null</em> if it is held in memory */
+		final File file;
+		/** size of the encoded content, in bytes */
+		final long encodedSize;
+		/** MIME type of the content */
+		final String contentType;
+		/** size of the original file, in bytes */
+		final long originalSize;
+		/** size of the content before encoding (after zipping, if zipped), in bytes */
+		final long rawSize;
+		/** whether or not the content is zipped */
+		final boolean zipped;
+
+		/**
+		 * Constructor
+		 * @param hash content hash
+		 * @param encoded encoded content, if held in memory
+		 * @param file spill file, if spilled
+		 * @param encodedSize encoded size
+		 * @param contentType MIME type
+		 * @param originalSize original file size
+		 * @param rawSize size before encoding
+		 * @param zipped whether or not the content is zipped
+		 */
+		Entry(String hash, byte[] encoded, File file, long encodedSize, String contentType, long originalSize, long rawSize, boolean zipped)
+		{
+			this.hash = hash;
+			this.encoded = encoded;
+			this.file = file;
+			this.encodedSize = encodedSize;
+			this.contentType = contentType;
+			this.originalSize = originalSize;
+			this.rawSize = rawSize;
+			this.zipped = zipped;
+		}
+
+		/**
+		 * Creates a copy of this entry whose content is held in the given spill file
+		 * @param spillFile the file holding the encoded content
+		 * @return the new entry
+		 */
+		Entry spilledTo(File spillFile)
+		{
+			return new Entry(hash, null, spillFile, encodedSize, contentType, originalSize, rawSize, zipped);
+		}
+	}
+
+	/**
+	 * Streams an entry's spill file, and holds its lease until released
+	 */
+	private class SpillDataSource extends FileDataSource
+	{
+		/** the entry */
+		private final Entry entry;
+		/** whether or not the lease has been released */
+		private boolean released;
+
+		/**
+		 * Constructor
+		 * @param entry the spilled entry
+		 */
+		SpillDataSource(Entry entry)
+		{
+			super(entry.file);
+			this.entry = entry;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return entry.contentType;
+		}
+
+		/**
+		 * Releases the lease on the spill file, if it has not already been released
+		 */
+		void release()
+		{
+			synchronized (this)
+			{
+				if (released)
+					return;
+				released = true;
+			}
+			unlease(entry.file);
+		}
+	}
+
+	/**
+	 * Passes writes through to another stream, but does not close it, so that the base64 encoder
+	 * can be closed (to flush its final bytes) without closing the target
+	 */
+	private static class UnclosedOutputStream extends OutputStream
+	{
+		/** the stream to which bytes are written */
+		private final OutputStream out;
+
+		/**
+		 * Constructor
+		 * @param out the stream to which bytes are written
+		 */
+		UnclosedOutputStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			out.flush();
+		}
+	}
+
+	/**
+	 * Counts the bytes written through it
+	 */
+	private static class CountingOutputStream extends OutputStream
+	{
+		/** the stream to which bytes are written */
+		private final OutputStream out;
+		/** number of bytes written */
+		long count;
+
+		/**
+		 * Constructor
+		 * @param out the stream to which bytes are written
+		 */
+		CountingOutputStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+	}
+}
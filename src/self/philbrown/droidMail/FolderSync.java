@@ -0,0 +1,425 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+/**
+ * Synchronizes many IMAP folders at once. Each call to {@link #sync()} checks each folder with a
+ * single STATUS command, and only opens the folders that have changed since the last sync. Changed
+ * folders are synchronized in parallel, over at most {@code maxConnections} connections.<p>
+ * A folder is unchanged if its UIDVALIDITY and UIDNEXT are the same and, when the server supports
+ * CONDSTORE (RFC 7162), its HIGHESTMODSEQ is the same. Without CONDSTORE, flag changes are not
+ * detected, and deletions are only detected by a change in the message count.<p>
+ * The state of each folder can be saved with {@link #getStates()} and restored with
+ * {@link #setState(FolderState)}, so that a later run only downloads what is new.
+ * Syncing makes network requests, so it must not be done on the main thread.
+ * @author Phil Brown
+ */
+public class FolderSync
+{
+	/** logging tag */
+	public static final String TAG = "FolderSync";
+
+	/** Default number of messages downloaded from a folder the first time it is synchronized */
+	public static final int DEFAULT_INITIAL_LIMIT = 100;
+
+	/** Reads the items of a STATUS response */
+	private static final Pattern STATUS_ITEM = Pattern.compile("(MESSAGES|UIDNEXT|UIDVALIDITY|HIGHESTMODSEQ)\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+
+	/** Connects to the server */
+	private final Mailer mailer;
+
+	/** Largest number of folders synchronized at once */
+	private final int maxConnections;
+
+	/** Newest messages downloaded from a folder the first time it is synchronized, or after its UIDVALIDITY changes */
+	private int initialLimit = DEFAULT_INITIAL_LIMIT;
+
+	/** The state of each folder after the last sync, keyed by full name */
+	private final Map<String, FolderState> states = new LinkedHashMap<String, FolderState>();
+
+	/**
+	 * Constructor
+	 * @param mailer connects to the IMAP server
+	 * @param maxConnections largest number of folders synchronized at once, each over its own connection
+	 */
+	public FolderSync(Mailer mailer, int maxConnections)
+	{
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("maxConnections must be at least 1");
+		this.mailer = mailer;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Sets how many of the newest messages are downloaded from a folder the first time it is synchronized,
+	 * or when the server has renumbered its UIDs
+	 * @param limit the number of messages. Defaults to {@link #DEFAULT_INITIAL_LIMIT}.
+	 */
+	public synchronized void setInitialLimit(int limit)
+	{
+		initialLimit = limit;
+	}
+
+	/**
+	 * Restores the state of a folder saved from an earlier sync
+	 * @param state the folder state
+	 */
+	public synchronized void setState(FolderState state)
+	{
+		states.put(state.name, state);
+	}
+
+	/**
+	 * Get the state of every folder after the last sync
+	 * @return the folder states
+	 */
+	public synchronized List<FolderState> getStates()
+	{
+		return new ArrayList<FolderState>(states.values());
+	}
+
+	/**
+	 * Synchronizes every folder that can hold messages
+	 * @return the folders that changed, with the messages added to each
+	 * @throws MessagingException if the folders could not be listed or checked
+	 */
+	public List<FolderChange> sync() throws MessagingException
+	{
+		Store store = mailer.getStore(Mailer.Protocol.IMAP);
+		List<String> names = new ArrayList<String>();
+		for (Folder folder : store.getDefaultFolder().list("*"))
+		{
+			if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0)
+				names.add(folder.getFullName());
+		}
+		return sync(names);
+	}
+
+	/**
+	 * Synchronizes the given folders. A folder that cannot be checked, such as one that has been deleted
+	 * or cannot be selected, is logged and skipped, and the remaining folders are still synchronized.
+	 * @param names the full names of the folders
+	 * @return the folders that changed, with the messages added to each
+	 * @throws MessagingException if none of the folders could be checked
+	 */
+	public List<FolderChange> sync(List<String> names) throws MessagingException
+	{
+		Store store = mailer.getStore(Mailer.Protocol.IMAP);
+		final List<FolderState> changed = new ArrayList<FolderState>();
+		MessagingException statusFailure = null;
+		int checked = 0;
+		for (String name : names)
+		{
+			FolderState current;
+			try
+			{
+				current = status((IMAPFolder) store.getFolder(name));
+			}
+			catch (MessagingException e)
+			{
+				Platform.getInstance().warn(TAG, "Could not check folder " + name, e);
+				if (statusFailure == null)
+					statusFailure = e;
+				continue;
+			}
+			checked++;
+			FolderState previous;
+			synchronized (this)
+			{
+				previous = states.get(name);
+			}
+			if (previous == null || current.isChangedFrom(previous))
+				changed.add(current);
+		}
+		if (checked == 0 && statusFailure != null)
+			throw statusFailure;
+		if (changed.isEmpty())
+			return Collections.emptyList();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConnections, changed.size()),
+		                                                        Platform.getInstance().newThreadFactory(TAG));
+		try
+		{
+			List<Future<FolderChange>> futures = new ArrayList<Future<FolderChange>>();
+			for (final FolderState state : changed)
+			{
+				futures.add(executor.submit(new Callable<FolderChange>() {
+					@Override
+					public FolderChange call() throws MessagingException
+					{
+						return fetch(state);
+					}
+				}));
+			}
+			List<FolderChange> changes = new ArrayList<FolderChange>();
+			MessagingException failure = null;
+			for (Future<FolderChange> future : futures)
+			{
+				try
+				{
+					changes.add(future.get());
+				}
+				catch (ExecutionException e)
+				{
+					Platform.getInstance().warn(TAG, "Could not sync folder", e.getCause());
+					if (failure == null)
+						failure = new MessagingException("Could not sync folder", e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new MessagingException("Sync interrupted", e);
+				}
+			}
+			if (changes.isEmpty() && failure != null)
+				throw failure;
+			return changes;
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Reads the state of a folder with a STATUS command, without opening it
+	 * @param folder the folder
+	 * @return the folder's current state
+	 * @throws MessagingException if the command failed
+	 */
+	private static FolderState status(IMAPFolder folder) throws MessagingException
+	{
+		final String name = folder.getFullName();
+		String items = (String) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			@Override
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException
+			{
+				Argument args = new Argument();
+				args.writeString(BASE64MailboxEncoder.encode(name));
+				args.writeAtom(protocol.hasCapability("CONDSTORE") ? "(MESSAGES UIDNEXT UIDVALIDITY HIGHESTMODSEQ)"
+						                                          : "(MESSAGES UIDNEXT UIDVALIDITY)");
+				Response[] responses = protocol.command("STATUS", args);
+				Response result = responses[responses.length - 1];
+				String status = null;
+				if (result.isOK())
+				{
+					for (Response response : responses)
+					{
+						String line = response.toString();
+						if (response.isUnTagged() && line.regionMatches(true, 0, "* STATUS", 0, 8))
+							status = line.substring(line.lastIndexOf('('));
+					}
+				}
+				protocol.notifyResponseHandlers(responses);
+				protocol.handleResult(result);
+				return status;
+			}
+		});
+		long messages = 0, uidNext = -1, uidValidity = -1, highestModSeq = -1;
+		if (items != null)
+		{
+			Matcher m = STATUS_ITEM.matcher(items);
+			while (m.find())
+			{
+				String item = m.group(1);
+				long value = Long.parseLong(m.group(2));
+				if (item.equalsIgnoreCase("MESSAGES"))
+					messages = value;
+				else if (item.equalsIgnoreCase("UIDNEXT"))
+					uidNext = value;
+				else if (item.equalsIgnoreCase("UIDVALIDITY"))
+					uidValidity = value;
+				else
+					highestModSeq = value;
+			}
+		}
+		return new FolderState(name, uidValidity, uidNext, highestModSeq, (int) messages);
+	}
+
+	/**
+	 * Downloads the summaries of the messages added to a changed folder, and records its new state
+	 * @param current the folder's state, read by {@link #status(IMAPFolder)}
+	 * @return the change
+	 * @throws MessagingException if the messages could not be downloaded
+	 */
+	private FolderChange fetch(FolderState current) throws MessagingException
+	{
+		FolderState previous;
+		int limit;
+		synchronized (this)
+		{
+			previous = states.get(current.name);
+			limit = initialLimit;
+		}
+		boolean reset = previous == null || previous.uidValidity != current.uidValidity;
+		IMAPFolder folder = (IMAPFolder) mailer.openFolder(Mailer.Protocol.IMAP, current.name, Folder.READ_ONLY);
+		try
+		{
+			Message[] messages;
+			if (reset)
+			{
+				int count = folder.getMessageCount();
+				int first = Math.max(1, count - limit + 1);
+				messages = limit <= 0 || count == 0 ? new Message[0] : folder.getMessages(first, count);
+			}
+			else if (current.uidNext > previous.uidNext)
+				messages = folder.getMessagesByUID(previous.uidNext, UIDFolder.LASTUID);
+			else
+				messages = new Message[0];
+
+			List<MessageSummary> added = new ArrayList<MessageSummary>();
+			for (MessageSummary summary : Mailer.summarize(folder, messages))
+			{
+				//"n:*" always includes the last message, even if it is older than n
+				if (reset || summary.uid >= previous.uidNext)
+					added.add(summary);
+			}
+			synchronized (this)
+			{
+				states.put(current.name, current);
+			}
+			return new FolderChange(current, previous, reset, added);
+		}
+		finally
+		{
+			Mailer.closeFolder(folder);
+		}
+	}
+
+	/**
+	 * The synchronization state of a folder
+	 */
+	public static class FolderState
+	{
+		/** the folder's full name */
+		public final String name;
+		/** the folder's UIDVALIDITY. If it changes, all previously seen UIDs are invalid. */
+		public final long uidValidity;
+		/** the UID the next message added to the folder will have */
+		public final long uidNext;
+		/** the folder's HIGHESTMODSEQ, or -1 if the server does not support CONDSTORE */
+		public final long highestModSeq;
+		/** the number of messages in the folder */
+		public final int messageCount;
+
+		/**
+		 * Constructor
+		 * @param name the folder's full name
+		 * @param uidValidity the folder's UIDVALIDITY
+		 * @param uidNext the folder's UIDNEXT
+		 * @param highestModSeq the folder's HIGHESTMODSEQ, or -1
+		 * @param messageCount the number of messages in the folder
+		 */
+		public FolderState(String name, long uidValidity, long uidNext, long highestModSeq, int messageCount)
+		{
+			this.name = name;
+			this.uidValidity = uidValidity;
+			this.uidNext = uidNext;
+			this.highestModSeq = highestModSeq;
+			this.messageCount = messageCount;
+		}
+
+		/**
+		 * Determines whether or not the folder has changed
+		 * @param previous the state at the last sync
+		 * @return {@code true} if the folder has changed
+		 */
+		boolean isChangedFrom(FolderState previous)
+		{
+			if (uidValidity != previous.uidValidity || uidNext != previous.uidNext)
+				return true;
+			if (highestModSeq >= 0 && previous.highestModSeq >= 0)
+				return highestModSeq != previous.highestModSeq;
+			return messageCount != previous.messageCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + " (uidvalidity " + uidValidity + ", uidnext " + uidNext + ", modseq " + highestModSeq + ", " + messageCount + " messages)";
+		}
+	}
+
+	/**
+	 * A folder that changed since the last sync
+	 */
+	public static class FolderChange
+	{
+		/** the folder's new state */
+		public final FolderState state;
+		/** the folder's state at the last sync, or <em>null</em> if it had not been synchronized */
+		public final FolderState previous;
+		/**
+		 * {@code true} if the folder had not been synchronized or its UIDVALIDITY changed, so any
+		 * previously stored messages should be discarded. {@link #added} then contains the newest messages.
+		 */
+		public final boolean reset;
+		/**
+		 * the messages added since the last sync. This is empty if only flags changed or messages were 
+		 * deleted, in which case the folder's messages can be refreshed with 
+		 * {@link Mailer#getHeaders(Mailer.Protocol, String, int, int)}.
+		 */
+		public final List<MessageSummary> added;
+
+		/**
+		 * Constructor
+		 * @param state the folder's new state
+		 * @param previous the folder's state at the last sync
+		 * @param reset whether or not previously stored messages are invalid
+		 * @param added the messages added since the last sync
+		 */
+		FolderChange(FolderState state, FolderState previous, boolean reset, List<MessageSummary> added)
+		{
+			this.state = state;
+			this.previous = previous;
+			this.reset = reset;
+			this.added = added;
+		}
+
+		@Override
+		public String toString()
+		{
+			return state.name + (reset ? " (reset)" : "") + ": " + added.size() + " added";
+		}
+	}
+}
@@ -23,6 +23,7 @@ import org.json.JSONException;
 import self.philbrown.droidMail.Mailer.MailListener;
 import self.philbrown.droidQuery.$;
 import self.philbrown.droidQuery.$Extension;
+import self.philbrown.droidQuery.Function;
 
 /**
  * Mail Extension for <a href="https://github.com/phil-brown/droidQuery">droidQuery</a>.<br>
@@ -54,16 +55,48 @@ import self.philbrown.droidQuery.$Extension;
  *              attachment: 'path/to/file.txt'
  *            }");
  * </pre>
+ * HTML messages may also include inline resources, which are encoded once and reused by later messages:
+ * <pre>
+ * mail.send("{ destination: 'jane.doe@yahoo.com',
+ *              subject: 'Weekly report',
+ *              message: 'Your weekly report is attached.',
+ *              html: '&lt;img src=\"cid:logo\"&gt;&lt;p&gt;Your weekly report is attached.&lt;/p&gt;',
+ *              inline: { logo: 'path/to/logo.png' },
+ *              attachment: 'path/to/report.pdf'
+ *            }");
+ * </pre>
+ * Large batches should be sent through a {@link Subscription}, which asks for messages only as fast 
+ * as they can be sent, so the producer never builds up an unbounded queue:
+ * <pre>
+ * final Iterator&lt;MailMessage&gt; newsletters = ...;
+ * final Mail.Subscriber[] subscriber = new Mail.Subscriber[1];
+ * subscriber[0] = mail.subscribe(new Mail.Subscription() {
+ *     public void request(int n) {
+ *         for (int i = 0; i &lt; n &amp;&amp; newsletters.hasNext(); i++)
+ *             subscriber[0].onNext(newsletters.next());
+ *         if (!newsletters.hasNext())
+ *             subscriber[0].onComplete();
+ *     }
+ *     public void cancel() {}
+ * }, 10);
+ * subscriber[0].start();
+ * </pre>
  * @author Phil Brown
  *
  */
 public class Mail extends $Extension
 {
+	/** Default largest number of messages from a {@link Subscription} that are being sent at once */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+	
 	/** Mail Configuration Options */
 	private MailOptions options;
 	
 	/** The droidQuery passed to callbacks */
 	private $ droidQuery;
+	
+	/** Sends messages for {@link #options}. Created on first use. */
+	private Mailer mailer;
 
 	/**
 	 * Constructor
@@ -79,42 +112,59 @@ public class Mail extends $Extension
 		try
 		{
 			options = (MailOptions) args[0];
-			if (options.destinations != null && options.message != null)
+			mailer = null;
+			if (options.message == null && options.html == null)
+				return;
+			if (options.recipients != null)
 			{
-				Mailer mailer = options.getMailer();
-				mailer.setMailListener(new MailListener() {
-
-					@Override
-					public void onSuccess(Mailer m) {
-						options.success.invoke(droidQuery);
-					}
-
-					@Override
-					public void onError(Mailer m) {
-						options.error.invoke(droidQuery);
-					}
-
-					@Override
-					public void onComplete(Mailer m) {
-						options.error.invoke(droidQuery);
-					}
-					
-				});
-				File attachment = null;
-				if (options.attachment != null)
-				{
-					attachment = new File(options.attachment);
-				}
-				mailer.send(options.destinations, options.subject, options.message, attachment);
+				send(options.getMessage(), RecipientSource.fromFile(new File(options.recipients)));
+			}
+			else if (options.destinations != null)
+			{
+				send(options.getMessage());
 			}
 			
 		}
 		catch (Throwable t)
 		{
-			//error
+			fail(t);
 		}
 	}
 	
+	/**
+	 * Get the mailer for the current options. It is created once and reused for every message, so
+	 * that connections, priority queues and coalescing are shared between sends.
+	 * @return the mailer
+	 */
+	private Mailer getMailer()
+	{
+		if (mailer == null)
+			mailer = options.getMailer();
+		return mailer;
+	}
+	
+	/**
+	 * Logs an error, and passes it to the {@link MailOptions#error error} function
+	 * @param t the error
+	 */
+	private void fail(Throwable t)
+	{
+		Platform.getInstance().warn(Mailer.TAG, "Could not send message", t);
+		if (options != null)
+			call(options.error, t);
+	}
+	
+	/**
+	 * Calls an optional callback function
+	 * @param function the function, or <em>null</em>
+	 * @param args the arguments passed after the droidQuery instance
+	 */
+	private void call(Function function, Object... args)
+	{
+		if (function != null)
+			function.invoke(droidQuery, args);
+	}
+	
 	/**
 	 * Send a Mail Message with the JSON Options
 	 * @param json Used for creating a new MailOptions object
@@ -124,14 +174,9 @@ public class Mail extends $Extension
 	{
 		try {
 			MailOptions temp = new MailOptions(json);
-			File attachment = null;
-			if (temp.attachment != null)
-			{
-				attachment = new File(temp.attachment);
-			}
-			send(temp.destinations, temp.subject, temp.message, attachment);
+			send(temp.getMessage());
 		} catch (JSONException e) {
-			//error
+			fail(e);
 		}
 	}
 	
@@ -144,26 +189,269 @@ public class Mail extends $Extension
 	 */
 	public void send(final String[] destinations, final String subject, final String message, final File attachment)
 	{
-		Mailer mailer = options.getMailer();
-		mailer.setMailListener(new MailListener() {
+		send(new MailMessage(destinations, subject, message, attachment));
+	}
+	
+	/**
+	 * Send a message, which may contain plain text, HTML with inline resources, or both. Once it has 
+	 * been sent the {@link MailOptions#success success} function is called, or if it failed the 
+	 * {@link MailOptions#error error} function, followed by the {@link MailOptions#complete complete} 
+	 * function.
+	 * @param message the message
+	 */
+	public void send(MailMessage message)
+	{
+		getMailer().send(message.listener(callbacks()));
+	}
+	
+	/**
+	 * Sends a message to a list of recipients too large to hold in memory. The list is read and sent in 
+	 * chunks of {@link Mailer#DEFAULT_RECIPIENT_CHUNK}, with recipients hidden from each other. Once every 
+	 * chunk has finished the {@link MailOptions#success success} function is called, or if any chunk failed 
+	 * the {@link MailOptions#error error} function, followed by the {@link MailOptions#complete complete} function.
+	 * @param message the message. Its destinations are ignored.
+	 * @param recipients supplies the recipients
+	 * @see Mailer#send(MailMessage, RecipientSource, int)
+	 */
+	public void send(MailMessage message, RecipientSource recipients)
+	{
+		getMailer().send(message.listener(callbacks()), recipients, Mailer.DEFAULT_RECIPIENT_CHUNK);
+	}
+	
+	/**
+	 * Creates a listener that passes the result of a message to the {@link #options} callbacks
+	 * @return the listener
+	 */
+	private MailListener callbacks()
+	{
+		return new MailListener() {
 
 			@Override
 			public void onSuccess(Mailer m) {
-				options.success.invoke(droidQuery);
+				call(options.success);
 			}
 
 			@Override
 			public void onError(Mailer m) {
-				options.error.invoke(droidQuery);
+				call(options.error);
 			}
 
 			@Override
 			public void onComplete(Mailer m) {
-				options.error.invoke(droidQuery);
+				call(options.complete);
 			}
 			
-		});
-		mailer.send(destinations, subject, message, attachment);
+		};
+	}
+	
+	/**
+	 * Sends the messages produced by a {@link Subscription}, asking for more only as earlier messages 
+	 * finish. At most {@code maxInFlight} messages are queued or being sent at any time. The 
+	 * {@link MailOptions#success success} or {@link MailOptions#error error} function is called for each 
+	 * message, and the {@link MailOptions#complete complete} function once, after the subscription has 
+	 * completed and every message has finished. Call {@link Subscriber#start()} to request the first messages.
+	 * @param subscription produces the messages
+	 * @param maxInFlight the largest number of messages queued or being sent at once
+	 * @return the subscriber, to which the subscription passes its messages
+	 * @see #DEFAULT_MAX_IN_FLIGHT
+	 */
+	public Subscriber subscribe(Subscription subscription, int maxInFlight)
+	{
+		return new Subscriber(subscription, maxInFlight);
+	}
+	
+	/**
+	 * A source of messages that produces them on demand. Methods are called on the main thread, 
+	 * so they must not block.
+	 * @see Mail#subscribe(Subscription, int)
+	 */
+	public static interface Subscription
+	{
+		/**
+		 * Asks for more messages. Pass up to {@code n} messages to {@link Subscriber#onNext(MailMessage)}, 
+		 * now or later. Call {@link Subscriber#onComplete()} once there are no more.
+		 * @param n the number of messages requested, in addition to any requested earlier
+		 */
+		public void request(int n);
+		
+		/**
+		 * Tells the subscription to stop producing messages
+		 */
+		public void cancel();
+	}
+	
+	/**
+	 * Receives messages from a {@link Subscription} and sends them, keeping a bounded number in flight
+	 */
+	public class Subscriber
+	{
+		/** produces the messages */
+		private final Subscription subscription;
+		/** the largest number of messages in flight */
+		private final int maxInFlight;
+		/** messages requested but not yet received */
+		private int requested;
+		/** messages received but not yet sent or failed */
+		private int inFlight;
+		/** whether or not the subscription has completed or failed */
+		private boolean done;
+		/** whether or not {@link #cancel()} has been called */
+		private boolean cancelled;
+		/** whether or not {@link #start()} has been called */
+		private boolean started;
+		
+		/**
+		 * Constructor
+		 * @param subscription produces the messages
+		 * @param maxInFlight the largest number of messages in flight
+		 */
+		Subscriber(Subscription subscription, int maxInFlight)
+		{
+			this.subscription = subscription;
+			this.maxInFlight = Math.max(1, maxInFlight);
+		}
+		
+		/**
+		 * Requests the first messages from the subscription. Later messages are requested as earlier 
+		 * ones finish.
+		 */
+		public void start()
+		{
+			synchronized (this)
+			{
+				if (started)
+					return;
+				started = true;
+				requested = maxInFlight;
+			}
+			subscription.request(maxInFlight);
+		}
+		
+		/**
+		 * Sends a message. Must only be called after the subscription has been asked for it.
+		 * @param message the message
+		 * @throws IllegalStateException if more messages are sent than were requested, or the 
+		 * subscription has completed or been cancelled
+		 */
+		public void onNext(MailMessage message)
+		{
+			synchronized (this)
+			{
+				if (done || cancelled)
+					throw new IllegalStateException("Subscription has ended");
+				if (requested == 0)
+					throw new IllegalStateException("Message was not requested");
+				requested--;
+				inFlight++;
+			}
+			message.listener(new MailListener() {
+
+				@Override
+				public void onSuccess(Mailer m) {
+					call(options.success);
+				}
+
+				@Override
+				public void onError(Mailer m) {
+					call(options.error);
+				}
+
+				@Override
+				public void onComplete(Mailer m) {
+					finished();
+				}
+				
+			});
+			try
+			{
+				getMailer().send(message);
+			}
+			catch (RuntimeException e)
+			{
+				//the message will never finish, so release its slot
+				fail(e);
+				finished();
+			}
+		}
+		
+		/**
+		 * Signals that the subscription has no more messages. The {@link MailOptions#complete complete} 
+		 * function is called once the remaining messages have finished.
+		 */
+		public void onComplete()
+		{
+			boolean finished;
+			synchronized (this)
+			{
+				if (done)
+					return;
+				done = true;
+				finished = inFlight == 0;
+			}
+			if (finished)
+				call(options.complete);
+		}
+		
+		/**
+		 * Signals that the subscription failed. The {@link MailOptions#error error} function is called 
+		 * immediately, and the {@link MailOptions#complete complete} function once the remaining messages 
+		 * have finished.
+		 * @param t the error
+		 */
+		public void onError(Throwable t)
+		{
+			fail(t);
+			onComplete();
+		}
+		
+		/**
+		 * Stops requesting messages and cancels the subscription. Messages already received are still sent.
+		 */
+		public void cancel()
+		{
+			synchronized (this)
+			{
+				if (cancelled)
+					return;
+				cancelled = true;
+			}
+			subscription.cancel();
+			onComplete();
+		}
+		
+		/**
+		 * Get the number of messages that have been received but have not yet been sent or failed
+		 * @return the number of messages in flight
+		 */
+		public synchronized int getInFlight()
+		{
+			return inFlight;
+		}
+		
+		/**
+		 * Called when a message has been sent or has failed. Requests another message, or finishes if
+		 * the subscription is done.
+		 */
+		private void finished()
+		{
+			boolean complete = false;
+			boolean request = false;
+			synchronized (this)
+			{
+				inFlight--;
+				if (done)
+					complete = inFlight == 0;
+				else if (!cancelled)
+				{
+					requested++;
+					request = true;
+				}
+			}
+			if (complete)
+				call(options.complete);
+			else if (request)
+				subscription.request(1);
+		}
 	}
 
 }
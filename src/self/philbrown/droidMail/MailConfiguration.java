@@ -44,10 +44,27 @@ public class MailConfiguration implements Parcelable
 	public int smtp_port;
 	/** whether or not to authenticate on SMTP (SSL/TLS) */
 	public boolean smtp_auth;
+	/** 
+	 * whether or not to connect to {@link #smtp_port} in plain text and upgrade the connection using STARTTLS
+	 * (typically port 587), instead of using implicit SSL on {@link #socket_port}. 
+	 */
+	public boolean smtp_starttls;
+	/** 
+	 * whether or not to connect to {@link #smtp_port} in plain text and never upgrade the connection. Only 
+	 * for servers that offer no encryption, such as relays on a trusted network, since the credentials and 
+	 * messages are sent in the clear. Takes precedence over {@link #smtp_starttls}.
+	 */
+	public boolean smtp_plain;
+	/** 
+	 * additional SMTP servers for this account, separated by commas. They use the same ports, security 
+	 * and credentials as {@link #host_smtp_server}. Messages are spread over all of the servers by response 
+	 * time, and a server that keeps failing is skipped for a while. Empty if the account has a single server.
+	 */
+	public String alternate_smtp_servers;
 	
 	/** server for receiving mail via the POP3 protocol */
 	public String popServer;
-	/** port for getting mail via POP3 */
+	/** port for getting mail via POP3. Connections always use implicit TLS (typically port 995). */
 	public int popPort;
 	/** whether or not authentication is required for getting mail via POP3 */
 	public boolean popAuth;
@@ -61,6 +78,17 @@ public class MailConfiguration implements Parcelable
 	
 	/** the {@code SocketFactory} port. Defaults to 465. */
 	public int socket_port;
+	
+	/** Time, in milliseconds, to wait for a connection to be established. Defaults to 30 seconds. 0 waits forever. */
+	public int connection_timeout;
+	/** Time, in milliseconds, to wait for a server response once connected. Defaults to 60 seconds. 0 waits forever. */
+	public int read_timeout;
+	/** the domain that signs outgoing mail with DKIM, such as <em>example.com</em>. Empty to disable signing. */
+	public String dkim_domain;
+	/** the DKIM selector under which {@link #dkim_domain} publishes its public key */
+	public String dkim_selector;
+	/** path to the DKIM private key, a PKCS#8 RSA key in PEM or DER format */
+	public String dkim_key;
 
 	/** the username for this account */
 	private String username;
@@ -78,7 +106,7 @@ public class MailConfiguration implements Parcelable
 		//gmail
 		MailConfiguration google = new MailConfiguration();
 		google.host_smtp_server = "smtp.gmail.com";
-		google.smtp_port = 456;
+		google.smtp_port = 465;
 		google.smtp_auth = true;
 		google.popServer = "pop.gmail.com";
 		google.popAuth = true;
@@ -108,6 +136,7 @@ public class MailConfiguration implements Parcelable
 		aol.host_smtp_server = "smtp.aol.com";
 		aol.smtp_port = 587;
 		aol.smtp_auth = true;
+		aol.smtp_starttls = true;
 		aol.popServer = "pop.aol.com";
 		aol.popAuth = true;
 		aol.popPort = 995;
@@ -122,6 +151,7 @@ public class MailConfiguration implements Parcelable
 		hotmail.host_smtp_server = "smtp.live.com";
 		hotmail.smtp_auth = true;
 		hotmail.smtp_port = 587;
+		hotmail.smtp_starttls = true;
 		hotmail.popServer = "pop3.live.com";
 		hotmail.popAuth = true;
 		hotmail.popPort = 995;
@@ -165,7 +195,7 @@ public class MailConfiguration implements Parcelable
 	/**
 	 * Default constructor. Initializes all values. 
 	 * Strings become "", ints become 0, booleans become false, 
-	 * and {@link #socket_port} becomes 465.<p>
+	 * {@link #socket_port} becomes 465, and the timeouts become 30 and 60 seconds.<p>
 	 * This constructor should only be used to pass information to 
 	 * {@link #MailConfiguration(String, String, String, MailConfiguration)}, since there is no
 	 * way to publicly set the password without one of the other constructors.
@@ -174,12 +204,20 @@ public class MailConfiguration implements Parcelable
 	public MailConfiguration()
 	{
 		socket_port = 465;
+		connection_timeout = 30000;
+		read_timeout = 60000;
+		dkim_domain = "";
+		dkim_selector = "";
+		dkim_key = "";
 		emailAddress = "";
 		username = "";
 		password = "";
 		host_smtp_server = "";
+		alternate_smtp_servers = "";
 		smtp_port = 0;
 		smtp_auth = false;
+		smtp_starttls = false;
+		smtp_plain = false;
 		popServer = "";
 		popPort = 0;
 		popAuth = false;
@@ -207,16 +245,7 @@ public class MailConfiguration implements Parcelable
 		}
 		if (commonProviders.containsKey(provider))
 		{
-			MailConfiguration conf = commonProviders.get(provider);
-			host_smtp_server = conf.host_smtp_server;
-			smtp_port = conf.smtp_port;
-			smtp_auth = conf.smtp_auth;
-			popServer = conf.popServer;
-			popAuth = conf.popAuth;
-			popPort = conf.popPort;
-			imapServer = conf.imapServer;
-			imapAuth = conf.imapAuth;
-			imapPort = conf.imapPort;
+			setServerSettings(commonProviders.get(provider));
 		}
 		else
 		{
@@ -228,6 +257,34 @@ public class MailConfiguration implements Parcelable
 		
 	}
 	
+	/**
+	 * Constructor<p>Creates a new {@code MailConfiguration} Object with the given email address, username, and password, 
+	 * that is preconfigured for the address' domain using the shared {@link ProviderRegistry}.
+	 * @param emailAddress host email address
+	 * @param username account username
+	 * @param password account password
+	 * @throws NullPointerException if any of the given parameters are <em>null</em>
+	 * @throws InvalidKeyException if no configuration could be found for the address' domain
+	 * @see ProviderRegistry#lookup(String)
+	 */
+	public MailConfiguration(String emailAddress, String username, String password) throws InvalidKeyException
+	{
+		this();
+		if (emailAddress == null || username == null || password == null)
+		{
+			throw new NullPointerException("Invalid parameters");
+		}
+		MailConfiguration conf = ProviderRegistry.getInstance().lookup(emailAddress);
+		if (conf == null)
+		{
+			throw new InvalidKeyException("Unknown Provider");
+		}
+		setServerSettings(conf);
+		this.emailAddress = emailAddress;
+		this.username = username;
+		this.password = password;
+	}
+	
 	/**
 	 * Constructor<p>Creates a new {@code MailConfiguration} with the given email address, username, password, and configuration.
 	 * This configuration can be created using the default constructor {@link #MailConfiguration()}.
@@ -252,7 +309,18 @@ public class MailConfiguration implements Parcelable
 		this.emailAddress = emailAddress;
 		this.username = username;
 		this.password = password;
+		setServerSettings(conf);
+	}
+	
+	/**
+	 * Copies the server settings (everything except the address and credentials), including DKIM signing, 
+	 * from the given configuration
+	 * @param conf the configuration to copy
+	 */
+	void setServerSettings(MailConfiguration conf)
+	{
 		host_smtp_server = conf.host_smtp_server;
+		alternate_smtp_servers = conf.alternate_smtp_servers;
 		smtp_port = conf.smtp_port;
 		smtp_auth = conf.smtp_auth;
 		popServer = conf.popServer;
@@ -261,6 +329,14 @@ public class MailConfiguration implements Parcelable
 		imapServer = conf.imapServer;
 		imapAuth = conf.imapAuth;
 		imapPort = conf.imapPort;
+		socket_port = conf.socket_port;
+		smtp_starttls = conf.smtp_starttls;
+		smtp_plain = conf.smtp_plain;
+		connection_timeout = conf.connection_timeout;
+		read_timeout = conf.read_timeout;
+		dkim_domain = conf.dkim_domain;
+		dkim_selector = conf.dkim_selector;
+		dkim_key = conf.dkim_key;
 	}
 	
 	/**
@@ -283,6 +359,14 @@ public class MailConfiguration implements Parcelable
 		imapPort = in.readInt();
 		imapAuth = (in.readInt() == 1 ? true : false);
 		socket_port = in.readInt();
+		smtp_starttls = (in.readInt() == 1 ? true : false);
+		connection_timeout = in.readInt();
+		read_timeout = in.readInt();
+		dkim_domain = in.readString();
+		dkim_selector = in.readString();
+		dkim_key = in.readString();
+		alternate_smtp_servers = in.readString();
+		smtp_plain = (in.readInt() == 1 ? true : false);
 	}
 
 	/**
@@ -311,6 +395,14 @@ public class MailConfiguration implements Parcelable
 		out.writeInt((imapAuth == true ? 1 : 0));
 		
 		out.writeInt(socket_port);
+		out.writeInt((smtp_starttls == true ? 1 : 0));
+		out.writeInt(connection_timeout);
+		out.writeInt(read_timeout);
+		out.writeString((dkim_domain == null ? "" : dkim_domain));
+		out.writeString((dkim_selector == null ? "" : dkim_selector));
+		out.writeString((dkim_key == null ? "" : dkim_key));
+		out.writeString((alternate_smtp_servers == null ? "" : alternate_smtp_servers));
+		out.writeInt((smtp_plain == true ? 1 : 0));
 	}
 	
 	/**
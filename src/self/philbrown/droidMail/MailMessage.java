@@ -0,0 +1,282 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An outgoing email message. A message may have a plain text body, an HTML body, or both (in which
+ * case they are sent as {@code multipart/alternative}). HTML bodies may reference inline resources,
+ * such as logos, using {@code <img src="cid:logo">}.
+ * @author Phil Brown
+ * @see Mailer#send(MailMessage)
+ */
+public class MailMessage
+{
+	/** Email destination addresses */
+	public String[] destinations;
+	/** Email Subject */
+	public String subject;
+	/** Email plain text content */
+	public String message;
+	/** Email HTML content */
+	public String html;
+	/** Inline resources referenced by {@link #html}, keyed by content ID */
+	public Map<String, File> inline = new LinkedHashMap<String, File>();
+	/** Email attachment */
+	public File attachment;
+	/** Delivery priority. Defaults to {@link Priority#NORMAL}. */
+	public Priority priority = Priority.NORMAL;
+	/** Called once this message has been sent or has failed, as for the {@link Mailer}'s listener. Not saved when the message is spooled. */
+	public Mailer.MailListener listener;
+	/** whether or not the recipients are sent as Bcc, hidden from each other. Not saved when the message is spooled. */
+	boolean bcc;
+	/** Recorded in the {@link DeliveryJournal} instead of the destinations, or <em>null</em> to record each destination */
+	String recipientSummary;
+	/** The messages merged into this digest, or <em>null</em> if this message was sent on its own */
+	List<MailMessage> merged;
+	/** The ID assigned by the {@link DeliveryJournal}, or 0 if the message is not tracked */
+	long journalId;
+
+	/**
+	 * Delivery priorities. Each priority has its own queue, and queues share connections in proportion
+	 * to their weights, so a large bulk mailing cannot delay a password reset.
+	 * @see Mailer#setMaxConnections(int, int)
+	 */
+	public static enum Priority
+	{
+		/** Mail a user is waiting for, such as password resets and confirmations. May use reserved connections. */
+		TRANSACTIONAL(8),
+		/** Ordinary mail */
+		NORMAL(3),
+		/** Newsletters and other large batches. Uses whatever capacity is left over. */
+		BULK(1);
+	
+		/** Share of connections given to this priority when all queues are busy */
+		final int weight;
+	
+		/**
+		 * Constructor
+		 * @param weight share of connections
+		 */
+		private Priority(int weight)
+		{
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Default constructor. Creates an empty message.
+	 */
+	public MailMessage()
+	{
+	}
+
+	/**
+	 * Constructor. Creates a plain text message.
+	 * @param destinations the email addresses to which to send this message
+	 * @param subject the email subject (optional)
+	 * @param message the email body
+	 * @param attachment an attachment to send (optional)
+	 */
+	public MailMessage(String[] destinations, String subject, String message, File attachment)
+	{
+		this.destinations = destinations;
+		this.subject = subject;
+		this.message = message;
+		this.attachment = attachment;
+	}
+
+	/**
+	 * Set the HTML body
+	 * @param html the HTML content
+	 * @return this
+	 */
+	public MailMessage html(String html)
+	{
+		this.html = html;
+		return this;
+	}
+
+	/**
+	 * Set the delivery priority
+	 * @param priority the priority
+	 * @return this
+	 */
+	public MailMessage priority(Priority priority)
+	{
+		this.priority = priority;
+		return this;
+	}
+
+	/**
+	 * Set the listener for this message only. It is called in addition to the {@link Mailer}'s listener.
+	 * If this message is merged into a digest, it is called when the digest has been sent or has failed.
+	 * @param listener the listener
+	 * @return this
+	 */
+	public MailMessage listener(Mailer.MailListener listener)
+	{
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Adds an inline resource that can be referenced from the HTML body as {@code cid:<contentId>}
+	 * @param contentId the content ID, such as <em>logo</em>
+	 * @param file the resource file
+	 * @return this
+	 */
+	public MailMessage inline(String contentId, File file)
+	{
+		inline.put(contentId, file);
+		return this;
+	}
+
+	/**
+	 * Writes this message to the given stream, so that it can be spooled until it is sent.
+	 * Files are written by path, not by content.
+	 * @param out the stream
+	 * @throws IOException if the message could not be written
+	 * @see #readFrom(DataInputStream, int, long)
+	 */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeInt(destinations == null ? 0 : destinations.length);
+		if (destinations != null)
+		{
+			for (String destination : destinations)
+				writeString(out, destination);
+		}
+		writeString(out, subject);
+		writeString(out, message);
+		writeString(out, html);
+		out.writeInt(inline == null ? 0 : inline.size());
+		if (inline != null)
+		{
+			for (Map.Entry<String, File> resource : inline.entrySet())
+			{
+				writeString(out, resource.getKey());
+				writeString(out, resource.getValue().getPath());
+			}
+		}
+		writeString(out, attachment == null ? null : attachment.getPath());
+		writeString(out, priority == null ? null : priority.name());
+	}
+
+	/**
+	 * Reads a message written by {@link #writeTo(DataOutputStream)}
+	 * @param in the stream
+	 * @param version the version of the spool file. Version 1 did not include the priority.
+	 * @param max the number of bytes left in the stream. Lengths larger than this are corrupt.
+	 * @return the message
+	 * @throws IOException if the message could not be read, or is corrupt
+	 */
+	static MailMessage readFrom(DataInputStream in, int version, long max) throws IOException
+	{
+		MailMessage message = new MailMessage();
+		message.destinations = new String[readCount(in, max)];
+		for (int i = 0; i < message.destinations.length; i++)
+			message.destinations[i] = readString(in, max);
+		message.subject = readString(in, max);
+		message.message = readString(in, max);
+		message.html = readString(in, max);
+		int inlineCount = readCount(in, max);
+		for (int i = 0; i < inlineCount; i++)
+		{
+			String contentId = readString(in, max);
+			String path = readString(in, max);
+			if (path == null)
+				throw new IOException("Missing inline resource path");
+			message.inline.put(contentId, new File(path));
+		}
+		String attachment = readString(in, max);
+		if (attachment != null)
+			message.attachment = new File(attachment);
+		if (version >= 2)
+		{
+			String priority = readString(in, max);
+			try
+			{
+				message.priority = priority == null ? null : Priority.valueOf(priority);
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IOException("Unknown priority " + priority);
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Writes a string of any length, which may be <em>null</em>
+	 * @param out the stream
+	 * @param string the string
+	 * @throws IOException if the string could not be written
+	 */
+	static void writeString(DataOutputStream out, String string) throws IOException
+	{
+		if (string == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = string.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads the number of items in an array written as a count followed by the items
+	 * @param in the stream
+	 * @param max the number of bytes left in the stream. Each item takes at least four bytes.
+	 * @return the count
+	 * @throws IOException if the count could not be read, or is corrupt
+	 */
+	static int readCount(DataInputStream in, long max) throws IOException
+	{
+		int count = in.readInt();
+		if (count < 0 || count > max/4)
+			throw new IOException("Corrupt count " + count);
+		return count;
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}
+	 * @param in the stream
+	 * @param max the number of bytes left in the stream. Longer lengths are corrupt.
+	 * @return the string, or <em>null</em>
+	 * @throws IOException if the string could not be read, or its length is corrupt
+	 */
+	static String readString(DataInputStream in, long max) throws IOException
+	{
+		int length = in.readInt();
+		if (length == -1)
+			return null;
+		if (length < 0 || length > max)
+			throw new IOException("Corrupt string length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
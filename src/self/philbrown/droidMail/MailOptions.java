@@ -16,7 +16,10 @@
 
 package self.philbrown.droidMail;
 
+import java.io.File;
 import java.security.InvalidKeyException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -26,9 +29,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import self.philbrown.droidMail.MailConfiguration.Provider;
+import self.philbrown.droidMail.MailMessage.Priority;
 import self.philbrown.droidQuery.$;
 import self.philbrown.droidQuery.Function;
-import android.util.Log;
 
 /**
  * Used to configure a droidMail email account.
@@ -51,10 +54,20 @@ public class MailOptions
 	public String subject = null;
 	/** Email Message content */
 	public String message = null;
+	/** Email HTML content */
+	public String html = null;
+	/** Paths of inline resources referenced by {@link #html}, keyed by content ID */
+	public Map<String, String> inline = null;
 	/** Email attachment */
 	public String attachment = null;
 	/** Email destination addresses */
 	public String[] destinations = null;
+	/** Path to a file of destination addresses, one per line, read a chunk at a time */
+	public String recipients = null;
+	/** Delivery priority */
+	public Priority priority = null;
+	/** Coalescing window, in milliseconds. 0 disables coalescing. */
+	public long coalesce = 0;
 
 	/**
 	 * Constructor.<br>
@@ -88,13 +101,28 @@ public class MailOptions
 	 * 	<li> <b>email:</b> string representation sender's email address
 	 * 	<li> <b>username:</b> string representation of the sender's username
 	 * 	<li> <b>password:</b> string representation of the sender's password
-	 * 	<li> <b>provider:</b> string representation of a {@link MailConfiguration.Provider}
+	 * 	<li> <b>provider:</b> string representation of a {@link MailConfiguration.Provider}, or an email domain
+	 * known to the {@link ProviderRegistry}. If omitted, the provider is looked up from the {@code email} address.
 	 * 	<li> <b>destination:</b> a single string representation of the destination address
 	 * 	<li> <b>destinations:</b> use instead of {@code destination} to represent, in array form, a list of
 	 * destination addresses. For example: [ "jane.doe@yahoo.com", "foobar@example.com" ]
+	 * 	<li> <b>recipients:</b> path to a UTF-8 file of destination addresses, one per line, for mailing lists
+	 * too large to hold in memory. The message is sent in chunks, with recipients hidden from each other.
+	 * See {@link Mailer#send(MailMessage, RecipientSource, int)}.
 	 * 	<li> <b>subject:</b> string subject of the email
 	 * 	<li> <b>message:</b> string message of the email
+	 * 	<li> <b>html:</b> HTML message of the email. If both {@code message} and {@code html} are given, 
+	 * recipients' mail clients choose which to display.
+	 * 	<li> <b>inline:</b> object mapping content IDs to the paths of resources used by {@code html}. For 
+	 * example: { logo: 'path/to/logo.png' } can be shown using {@code <img src="cid:logo">}
 	 * 	<li> <b>attachment:</b> path to attachment file
+	 * 	<li> <b>priority:</b> one of <em>transactional</em>, <em>normal</em> (the default) or <em>bulk</em>. 
+	 * Transactional mail is sent ahead of bulk mail. See {@link MailMessage.Priority}.
+	 * 	<li> <b>coalesce:</b> number of milliseconds during which messages to the same recipients are merged 
+	 * into one digest. See {@link Mailer#setCoalescing(long, int)}.
+	 * 	<li> <b>dkim_domain:</b> the domain that signs outgoing mail with DKIM, such as <em>example.com</em>
+	 * 	<li> <b>dkim_selector:</b> the DKIM selector under which {@code dkim_domain} publishes its public key
+	 * 	<li> <b>dkim_key:</b> path to the DKIM private key. See {@link DkimSigner}.
 	 * </ul>
 	 * @param json the JSON string
 	 * @throws JSONException if JSON string is malformed
@@ -112,14 +140,29 @@ public class MailOptions
 	 * 	<li> <b>email:</b> string representation sender's email address
 	 * 	<li> <b>username:</b> string representation of the sender's username
 	 * 	<li> <b>password:</b> string representation of the sender's password
-	 * 	<li> <b>provider:</b> string representation of a {@link MailConfiguration.Provider} <b>OR</b>
-	 * an instance of {@link MailConfiguration}. This is useful for custom configurations.
+	 * 	<li> <b>provider:</b> string representation of a {@link MailConfiguration.Provider}, an email domain known
+	 * to the {@link ProviderRegistry} <b>OR</b> an instance of {@link MailConfiguration}. This is useful for custom 
+	 * configurations. If omitted, the provider is looked up from the domain of the {@code email} address.
 	 * 	<li> <b>destination:</b> a single string representation of the destination address
 	 * 	<li> <b>destinations:</b> use instead of {@code destination} to represent, in array form, a list of
 	 * destination addresses. For example: [ "jane.doe@yahoo.com", "foobar@example.com" ]
+	 * 	<li> <b>recipients:</b> path to a UTF-8 file of destination addresses, one per line, for mailing lists
+	 * too large to hold in memory. The message is sent in chunks, with recipients hidden from each other.
+	 * See {@link Mailer#send(MailMessage, RecipientSource, int)}.
 	 * 	<li> <b>subject:</b> string subject of the email
 	 * 	<li> <b>message:</b> string message of the email
+	 * 	<li> <b>html:</b> HTML message of the email. If both {@code message} and {@code html} are given, 
+	 * recipients' mail clients choose which to display.
+	 * 	<li> <b>inline:</b> {@code JSONObject} or {@code Map} of content IDs to the paths of resources used 
+	 * by {@code html}. For example: { logo: 'path/to/logo.png' } can be shown using {@code <img src="cid:logo">}
 	 * 	<li> <b>attachment:</b> path to attachment file
+	 * 	<li> <b>priority:</b> one of <em>transactional</em>, <em>normal</em> (the default) or <em>bulk</em>. 
+	 * Transactional mail is sent ahead of bulk mail. See {@link MailMessage.Priority}.
+	 * 	<li> <b>coalesce:</b> number of milliseconds during which messages to the same recipients are merged 
+	 * into one digest. See {@link Mailer#setCoalescing(long, int)}.
+	 * 	<li> <b>dkim_domain:</b> the domain that signs outgoing mail with DKIM, such as <em>example.com</em>
+	 * 	<li> <b>dkim_selector:</b> the DKIM selector under which {@code dkim_domain} publishes its public key
+	 * 	<li> <b>dkim_key:</b> path to the DKIM private key. See {@link DkimSigner}.
 	 * </ul>
 	 * @param json the dictionary of Options
 	 */
@@ -128,6 +171,9 @@ public class MailOptions
 		String email = null;
 		String username = null;
 		Object provider = null;
+		String dkimDomain = null;
+		String dkimSelector = null;
+		String dkimKey = null;
 		
 		
 		for (Entry<String, ?> entry : json.entrySet())
@@ -149,7 +195,14 @@ public class MailOptions
 			else if (key.equalsIgnoreCase("provider"))
 			{
 				if (value instanceof String)
-					provider = Provider.valueOf(Provider.class, ((String) value).toLowerCase(Locale.US));
+				{
+					try {
+						provider = Provider.valueOf(Provider.class, ((String) value).toLowerCase(Locale.US));
+					} catch (IllegalArgumentException e) {
+						//not a common provider. Treat it as a domain for the ProviderRegistry.
+						provider = value;
+					}
+				}
 				else if (value instanceof MailConfiguration)
 					provider = value;
 			}
@@ -183,6 +236,10 @@ public class MailOptions
 					destinations = ((String) value).split(",");
 				}
 			}
+			else if (key.equalsIgnoreCase("recipients"))
+			{
+				recipients = (String) value;
+			}
 			else if (key.equalsIgnoreCase("subject"))
 			{
 				subject = (String) value;
@@ -191,19 +248,93 @@ public class MailOptions
 			{
 				message = (String) value;
 			}
+			else if (key.equalsIgnoreCase("html"))
+			{
+				html = (String) value;
+			}
+			else if (key.equalsIgnoreCase("inline"))
+			{
+				inline = new LinkedHashMap<String, String>();
+				if (value instanceof JSONObject)
+				{
+					JSONObject object = (JSONObject) value;
+					Iterator<?> keys = object.keys();
+					while (keys.hasNext())
+					{
+						String cid = (String) keys.next();
+						inline.put(cid, object.optString(cid));
+					}
+				}
+				else if (value instanceof Map)
+				{
+					for (Entry<?, ?> resource : ((Map<?, ?>) value).entrySet())
+					{
+						inline.put(String.valueOf(resource.getKey()), String.valueOf(resource.getValue()));
+					}
+				}
+			}
 			else if (key.equalsIgnoreCase("attachment"))
 			{
 				attachment = (String) value;
 			}
-			
-			try {
-				if (provider instanceof Provider)
-					this.configuration = new MailConfiguration(email, username, password, (Provider) provider);
-				else if (provider instanceof MailConfiguration)
-					this.configuration = new MailConfiguration(email, username, password, (MailConfiguration) provider);
-			} catch (InvalidKeyException e) {
-				Log.e("$Mail", "Invalid Provider");
+			else if (key.equalsIgnoreCase("dkim_domain"))
+			{
+				dkimDomain = (String) value;
+			}
+			else if (key.equalsIgnoreCase("dkim_selector"))
+			{
+				dkimSelector = (String) value;
+			}
+			else if (key.equalsIgnoreCase("dkim_key"))
+			{
+				dkimKey = (String) value;
+			}
+			else if (key.equalsIgnoreCase("coalesce"))
+			{
+				if (value instanceof Number)
+					coalesce = ((Number) value).longValue();
+			}
+			else if (key.equalsIgnoreCase("priority"))
+			{
+				if (value instanceof Priority)
+					priority = (Priority) value;
+				else if (value instanceof String)
+				{
+					try {
+						priority = Priority.valueOf(((String) value).toUpperCase(Locale.US));
+					} catch (IllegalArgumentException e) {
+						Platform.getInstance().warn("$Mail", "Unknown priority " + value, null);
+					}
+				}
+			}
+		}
+		
+		try {
+			if (provider instanceof Provider)
+				this.configuration = new MailConfiguration(email, username, password, (Provider) provider);
+			else if (provider instanceof MailConfiguration)
+				this.configuration = new MailConfiguration(email, username, password, (MailConfiguration) provider);
+			else if (provider instanceof String)
+			{
+				MailConfiguration conf = ProviderRegistry.getInstance().lookup((String) provider);
+				if (conf == null)
+					throw new InvalidKeyException("Unknown Provider");
+				this.configuration = new MailConfiguration(email, username, password, conf);
 			}
+			else if (email != null && username != null && password != null)
+				this.configuration = new MailConfiguration(email, username, password);
+		} catch (InvalidKeyException e) {
+			Platform.getInstance().warn("$Mail", "Invalid Provider", null);
+		}
+		
+		if (configuration != null)
+		{
+			if (dkimDomain != null)
+				configuration.dkim_domain = dkimDomain;
+			if (dkimSelector != null)
+				configuration.dkim_selector = dkimSelector;
+			if (dkimKey != null)
+				configuration.dkim_key = dkimKey;
 		}
 	}
 	
@@ -241,6 +372,26 @@ public class MailOptions
 		return this;
 	}
 	
+	/**
+	 * Builds the message described by these options
+	 * @return the message
+	 */
+	public MailMessage getMessage()
+	{
+		MailMessage msg = new MailMessage(destinations, subject, message, attachment == null ? null : new File(attachment));
+		msg.html = html;
+		if (priority != null)
+			msg.priority = priority;
+		if (inline != null)
+		{
+			for (Entry<String, String> resource : inline.entrySet())
+			{
+				msg.inline(resource.getKey(), new File(resource.getValue()));
+			}
+		}
+		return msg;
+	}
+	
 	/**
 	 * Gets the mailer required to send the message. This is placed here to avoid passing around the
 	 * password argument (which is now kept secure).
@@ -248,6 +399,9 @@ public class MailOptions
 	 */
 	public Mailer getMailer()
 	{
-		return new Mailer(configuration, password);
+		Mailer mailer = new Mailer(configuration, password);
+		if (coalesce > 0)
+			mailer.setCoalescing(coalesce, Mailer.DEFAULT_COALESCE_SIZE);
+		return mailer;
 	}
 }
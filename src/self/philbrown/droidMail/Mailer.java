@@ -16,31 +16,67 @@
 
 package self.philbrown.droidMail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.activation.CommandMap;
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.activation.FileDataSource;
 import javax.activation.MailcapCommandMap;
-import javax.mail.BodyPart;
+import javax.mail.Address;
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.Part;
 import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.Transport;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 
-import android.os.AsyncTask;
-import android.util.Log;
+import self.philbrown.droidMail.MailMessage.Priority;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.BODYSTRUCTURE;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UIDSet;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
 
 /**
  * Send and receive mail without using Android intent. Closely follows Model-Controller-Store framework
@@ -51,9 +87,6 @@ public class Mailer extends javax.mail.Authenticator
 	/** logging tag */
 	public static final String TAG = "Mailer";
 	
-	/** used to allow the addition of attachments to the email message */
-	private Multipart multipart;
-	
 	/** if set to true, mail operations will log verbosely */
 	private boolean DEBUG;
 	
@@ -65,6 +98,100 @@ public class Mailer extends javax.mail.Authenticator
 	
 	private MailListener listener;
 	
+	/** Default largest number of messages sent at once */
+	public static final int DEFAULT_MAX_CONNECTIONS = 3;
+	
+	/** Size, in bytes, of the blocks in which IMAP message content is downloaded */
+	public static final int FETCH_SIZE = 64*1024;
+	
+	/** Largest number of idle IMAP connections kept for reuse */
+	public static final int STORE_POOL_SIZE = 4;
+	
+	/** Largest number of UID ranges sent in a single IMAP command */
+	public static final int MAX_UID_RANGES = 500;
+	
+	/** Connected message stores, reused between receive calls */
+	private final Map<Protocol, Store> stores = new HashMap<Protocol, Store>();
+	
+	/** Default number of connections reserved for {@link Priority#TRANSACTIONAL} mail */
+	public static final int DEFAULT_RESERVED_CONNECTIONS = 1;
+	
+	/** Connected transports, reused between messages */
+	private final TransportPool pool = new TransportPool(this);
+	
+	/** Schedules queued messages onto {@link #pool} by priority */
+	private final Dispatcher dispatcher = new Dispatcher(this, DEFAULT_MAX_CONNECTIONS, DEFAULT_RESERVED_CONNECTIONS);
+	
+	/** How often, in milliseconds, warm connections are checked and the send rate is sampled */
+	public static final long WARM_INTERVAL = 5000;
+	
+	/** How long, in milliseconds, connections opened by {@link #warmUp(int)} are kept open if unused */
+	public static final long WARM_HOLD = 120000;
+	
+	/** Predicts how many connections to keep warm from the recent send rate */
+	private final SendRatePredictor predictor = new SendRatePredictor();
+	
+	/** whether or not the number of warm connections follows the send rate. Disabled by default. */
+	private volatile boolean adaptiveWarmUp;
+	
+	/** Number of connections requested by {@link #warmUp(int)} */
+	private int warmConnections;
+	
+	/** Time until which {@link #warmConnections} are kept open */
+	private long warmUntil;
+	
+	/** When the send rate was last sampled */
+	private long lastSample;
+	
+	/** The next check of the warm connections, or <em>null</em> if none is scheduled */
+	private TimerWheel.Timeout warmTimer;
+	
+	/** Number of connections kept open by the last check of the warm connections */
+	private int warmTarget;
+	
+	/** Merges bursts of messages to the same recipients. Disabled by default. */
+	private final Coalescer coalescer = new Coalescer(this);
+	
+	/** Default largest number of messages merged into one digest */
+	public static final int DEFAULT_COALESCE_SIZE = 50;
+	
+	/** Allowance, in bytes, for the headers and MIME boundaries of a message when estimating its size */
+	private static final int HEADER_ALLOWANCE = 512;
+	
+	/** Default number of recipients per message when sending to a {@link RecipientSource}. Every SMTP server must accept this many. */
+	public static final int DEFAULT_RECIPIENT_CHUNK = 100;
+	
+	/** Health of the SMTP servers, used to choose the server for each new connection */
+	private SmtpEndpoints endpoints;
+	
+	/** The session used for sending mail. Reused between messages, and rebuilt if the configuration changes. */
+	private Session sendSession;
+	
+	/** The properties used to create {@link #sendSession} */
+	private Properties sendProperties;
+	
+	/** Attachments at least this large, in bytes, are zipped before sending. 0 disables compression. */
+	private long compressionThreshold;
+	
+	/** The byte budget of the most recently built message */
+	private ByteBudget byteBudget;
+	
+	/** Messages waiting to be sent by {@link #sendAt(MailMessage, Date)} */
+	private final LinkedHashSet<ScheduledMail> scheduled = new LinkedHashSet<ScheduledMail>();
+	
+	/** Directory in which scheduled messages are persisted, or <em>null</em> to keep them only in memory */
+	private File spoolDirectory;
+	
+	/** Records the lifecycle of each message, or <em>null</em> */
+	private volatile DeliveryJournal journal;
+	
+	/** File extensions of formats that are already compressed, and so are not zipped */
+	private static final String[] COMPRESSED_EXTENSIONS = {
+		".zip", ".gz", ".tgz", ".bz2", ".xz", ".7z", ".rar", ".jar", ".apk",
+		".jpg", ".jpeg", ".png", ".gif", ".webp", ".mp3", ".mp4", ".m4a", ".ogg", ".3gp",
+		".docx", ".xlsx", ".pptx", ".odt", ".ods", ".odp"
+	};
+	
 	/**
 	 * specifies how to get mail
 	 */
@@ -91,8 +218,6 @@ public class Mailer extends javax.mail.Authenticator
 		this.config = config;
 		this.password = password;
 		
-		multipart = new MimeMultipart(); 
-		 
 	    // There is something wrong with MailCap, javamail can not find a handler for the multipart/mixed part, so this bit needs to be added. 
 	    MailcapCommandMap mc = (MailcapCommandMap) CommandMap.getDefaultCommandMap(); 
 	    mc.addMailcap("text/html;; x-java-content-handler=com.sun.mail.handlers.text_html"); 
@@ -135,204 +260,1796 @@ public class Mailer extends javax.mail.Authenticator
 	 */
 	public void send(String[] destinationAddresses, String subject, String message, File attachment)
 	{
-		if (destinationAddresses.length == 0)
+		send(new MailMessage(destinationAddresses, subject, message, attachment));
+	}
+	
+	/**
+	 * Send the given message, which may contain plain text, HTML with inline resources, or both.
+	 * The message is queued by its {@link MailMessage#priority priority}, and sent in the background 
+	 * over a pooled connection. The {@link MailListener} is called once the message has been sent, or 
+	 * has failed, on the thread chosen by the {@link Platform} (on Android, the main thread). If coalescing is enabled, the message may first be held and merged
+	 * with others to the same recipients, in which case the listener is called once for the digest, and 
+	 * the {@link MailMessage#listener listener} of each merged message is called too.<p>
+	 * The destinations are first checked with {@link AddressValidator}. Malformed addresses, duplicates, 
+	 * and addresses at domains that have recently been rejected are removed, and the message is sent to 
+	 * the rest. If there is no usable address, the listener is told that the message failed. It is also 
+	 * told right away if the {@link #estimateSize(MailMessage) estimated size} of the message is larger 
+	 * than the server advertised the last time droidMail connected to it.
+	 * @param message the message to send
+	 * @see #setCoalescing(long, int)
+	 */
+	public void send(MailMessage message)
+	{
+		DeliveryJournal j = journal;
+		if (j != null)
+			j.queued(message);
+		AddressValidator.Result addresses = AddressValidator.filter(message.destinations == null ? new String[0] : message.destinations);
+		if (!addresses.rejected.isEmpty())
+			Platform.getInstance().warn(TAG, "Not sending to invalid addresses " + addresses.rejected, null);
+		if (addresses.accepted.length == 0)
+		{
+			if (j != null)
+				j.failed(message, null, "No valid recipients " + addresses.rejected);
+			notifyListener(message, false);
 			return;
+		}
+		message.destinations = addresses.accepted;
 		try
 		{
-			
-			Properties props = new Properties(); 
-			props.put("mail.smtp.host", config.host_smtp_server); 
-			props.put("mail.debug", DEBUG); 
-			props.put("mail.smtp.auth", config.smtp_auth); 
-			props.put("mail.smtp.port", config.smtp_port); 
-			props.put("mail.smtp.socketFactory.port", config.socket_port); 
-			props.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory"); 
-			props.put("mail.smtp.socketFactory.fallback", "false"); 
-			
-			Session session = Session.getInstance(props, this); 
-	 
-			MimeMessage msg = new MimeMessage(session); 
- 
-			msg.setFrom(new InternetAddress(config.getAddress())); 
-       
-			InternetAddress[] recipients = new InternetAddress[destinationAddresses.length]; 
-			for (int i = 0; i < destinationAddresses.length; i++) { 
-				recipients[i] = new InternetAddress(destinationAddresses[i]); 
-			} 
-			msg.setRecipients(MimeMessage.RecipientType.TO, recipients); 
-			
-			if (subject != null)
-				msg.setSubject(subject); 
-			
-			msg.setSentDate(new Date()); 
-      
-			// setup message body 
-			BodyPart messageBodyPart = new MimeBodyPart(); 
-			messageBodyPart.setText(message); 
-			multipart.addBodyPart(messageBodyPart); 
-			
-			if (attachment != null)
+			checkSize(message, config.host_smtp_server);
+		}
+		catch (MessagingException e)
+		{
+			Platform.getInstance().warn(TAG, "Not sending message", e);
+			if (j != null)
+				j.failed(message, null, e.getMessage());
+			notifyListener(message, false);
+			return;
+		}
+		if (!coalescer.offer(message))
+			dispatch(message);
+	}
+	
+	/**
+	 * Queues a message for delivery, bypassing coalescing
+	 * @param message the message to send
+	 */
+	void dispatch(MailMessage message)
+	{
+		dispatcher.submit(message);
+	}
+	
+	/**
+	 * Send the given message with the given priority
+	 * @param message the message to send
+	 * @param priority the delivery priority
+	 * @see #send(MailMessage)
+	 */
+	public void send(MailMessage message, Priority priority)
+	{
+		message.priority = priority;
+		send(message);
+	}
+	
+	/**
+	 * Sends a message to a list of recipients too large to hold in memory, such as a mailing list read 
+	 * from a file. Recipients are read {@code chunkSize} at a time, and each chunk is sent as its own 
+	 * message, addressed as Bcc so recipients do not see each other. The next chunk is only read once 
+	 * an earlier chunk has finished, so memory use does not depend on the number of recipients. Invalid 
+	 * addresses are skipped, and duplicates are only removed within a chunk. Each chunk is recorded in the 
+	 * journal with a summary of its recipients rather than every address, and the {@link MailListener} is called for each chunk. The message's 
+	 * own {@link MailMessage#listener listener} is called once, after the last chunk, and is told that the 
+	 * mailing failed if any chunk failed or no valid recipient was found. The source is closed once it 
+	 * has been read.
+	 * @param message the message. Its {@link MailMessage#destinations destinations} are ignored.
+	 * @param recipients supplies the recipients
+	 * @param chunkSize the largest number of recipients per message. Servers must accept at least 
+	 * {@link #DEFAULT_RECIPIENT_CHUNK}.
+	 */
+	public void send(MailMessage message, RecipientSource recipients, int chunkSize)
+	{
+		new ChunkedSend(this, message, recipients, chunkSize).start();
+	}
+	
+	/**
+	 * Sends a message over a pooled connection, and notifies the listener. Called on a dispatcher thread.
+	 * A reused connection that fails is replaced and the message is tried once more, since the server
+	 * may have closed it while it was idle. A new connection that fails, or a server that temporarily 
+	 * refuses the whole message, is recorded as a failure of that server and the message is tried on the 
+	 * next one. If the server refuses some recipients, the message is still sent to the others and counts 
+	 * as sent. If the configuration enables DKIM, the message is signed 
+	 * once, before the first attempt. A message larger than the server's advertised limit fails before 
+	 * any of it is uploaded. Each result is recorded with the health of the server that handled it, so 
+	 * a failing server is skipped for later messages.
+	 * @param message the message to send
+	 */
+	void deliver(MailMessage message)
+	{
+		boolean success = false;
+		MimeMessage msg = null;
+		String reply = null;
+		try
+		{
+			//fail before the message is built, if the server's limit is already known
+			checkSize(message, config.host_smtp_server);
+			ByteBudget budget = new ByteBudget();
+			msg = buildMessage(getSendSession(), message, budget);
+			//the built size includes attachments compressed while building
+			long size = headerSize(message) + budget.getEncodedSize();
+			DkimSigner signer = DkimSigner.forConfiguration(config);
+			if (signer != null)
+				signer.sign(msg);
+			List<String> failed = new ArrayList<String>();
+			MessagingException failure = null;
+			while (true)
 			{
+				TransportPool.Connection connection;
 				try
 				{
-					BodyPart attachmentBodyPart = new MimeBodyPart(); 
-					DataSource source = new FileDataSource(attachment); 
-					attachmentBodyPart.setDataHandler(new DataHandler(source)); 
-					attachmentBodyPart.setFileName(attachment.getName()); 
-			 
-					multipart.addBodyPart(attachmentBodyPart); 
-				} catch (Throwable t)
+					connection = pool.acquire(failed);
+				}
+				catch (MessagingException e)
+				{
+					//report why the last server failed, rather than that none is left
+					throw failure != null ? failure : e;
+				}
+				try
+				{
+					//the server may have reported its limit only now, or may be an alternate
+					checkSize(size, connection.host);
+				}
+				catch (MessagingException e)
+				{
+					pool.release(connection);
+					throw e;
+				}
+				boolean reused = connection.idleSince != 0;
+				long start = System.currentTimeMillis();
+				try
+				{
+					Address[] recipients = msg.getAllRecipients();
+					connection.transport.sendMessage(msg, recipients);
+					long duration = System.currentTimeMillis() - start;
+					getEndpoints().success(connection.host, duration);
+					if (adaptiveWarmUp)
+						predictor.recordSend(duration);
+					AddressValidator.record(recipients);
+					reply = lastReply(connection.transport);
+					pool.release(connection);
+					success = true;
+					break;
+				}
+				catch (SendFailedException e)
+				{
+					reply = e.getMessage();
+					if (isRecipientFailure(e))
+					{
+						//the server rejected recipients, but is working and the connection is still usable
+						getEndpoints().success(connection.host, System.currentTimeMillis() - start);
+						pool.release(connection);
+						AddressValidator.record(e);
+						Address[] sent = e.getValidSentAddresses();
+						if (sent == null || sent.length == 0)
+							throw e;
+						Platform.getInstance().warn(TAG, "Server refused some recipients", e);
+						success = true;
+						break;
+					}
+					pool.discard(connection);
+					//a permanent refusal of the message itself would be repeated by every server
+					if (!isTransientFailure(e))
+						throw e;
+					Platform.getInstance().warn(TAG, connection.host + " temporarily refused the message", e);
+					getEndpoints().failure(connection.host);
+					failed.add(connection.host);
+					failure = e;
+				}
+				catch (MessagingException e)
 				{
-					t.printStackTrace();
-					//Could not attach file
+					pool.discard(connection);
+					if (!reused)
+					{
+						Platform.getInstance().warn(TAG, "Could not send message to " + connection.host, e);
+						getEndpoints().failure(connection.host);
+						failed.add(connection.host);
+						failure = e;
+						continue;
+					}
+					//an idle connection the server has closed says nothing about its health
+					if (DEBUG)
+						Platform.getInstance().debug(TAG, "Pooled connection failed. Reconnecting.", e);
 				}
 			}
- 
-			// Put parts in message 
-			msg.setContent(multipart); 
-  
-			// send email 
-			Transport transport = session.getTransport("smtps");
-			Transporter t = new Transporter(transport);
-			t.execute(msg);
-			if (listener != null)
-				listener.onSuccess(this);
-		} 
+		}
 		catch (Throwable t)
 		{
-			t.printStackTrace();
-			if (listener != null)
-				listener.onError(this);
+			Platform.getInstance().warn(TAG, "Could not send message", t);
+			if (reply == null)
+				reply = t.toString();
 		}
-		if (listener != null)
-			listener.onComplete(this);
+		//the message is no longer written, so spill files it streams from may be deleted
+		if (msg != null)
+			EncodedPartCache.getInstance().release(msg);
+		DeliveryJournal j = journal;
+		if (j != null)
+			record(j, message, msg, success, reply);
+		notifyListener(message, success);
 	}
 	
 	/**
-	 * set {@link #DEBUG} to true
+	 * Determines whether or not a send failed because of its recipients, rather than because of the 
+	 * server. A server that refuses recipients is still working, but a failed reply to MAIL FROM or to 
+	 * the message itself, or a temporary refusal of every recipient, is a problem with the server.
+	 * @param e the exception thrown by the transport
+	 * @return {@code true} if some recipients were accepted, or at least one was refused permanently
 	 */
-	public void enableDebugMode()
+	private static boolean isRecipientFailure(SendFailedException e)
 	{
-		DEBUG = true;
+		if (e instanceof SMTPSendFailedException)
+		{
+			//also thrown with the 2xx reply to the message, when only some recipients were accepted
+			int code = ((SMTPSendFailedException) e).getReturnCode();
+			if (code < 200 || code > 299)
+				return false;
+		}
+		Address[] sent = e.getValidSentAddresses();
+		if (sent != null && sent.length > 0)
+			return true;
+		for (Exception next = e.getNextException(); next instanceof SMTPAddressFailedException; next = ((MessagingException) next).getNextException())
+		{
+			if (((SMTPAddressFailedException) next).getReturnCode() >= 500)
+				return true;
+		}
+		return false;
 	}
-	
+
 	/**
-	 * set {@link #DEBUG} to false
+	 * Determines whether or not a server refused a message only temporarily, with a 4xx reply, so that
+	 * another server may accept it
+	 * @param e an exception for which {@link #isRecipientFailure(SendFailedException)} is {@code false}
+	 * @return {@code true} if the failure is temporary
 	 */
-	public void disableDebugMode()
+	private static boolean isTransientFailure(SendFailedException e)
 	{
-		DEBUG = false;
+		//otherwise every recipient was refused with a 4xx reply
+		if (!(e instanceof SMTPSendFailedException))
+			return true;
+		int code = ((SMTPSendFailedException) e).getReturnCode();
+		return code >= 400 && code <= 499;
 	}
-	
+
 	/**
-	 * Sends an email message in a background thread
-	 * @author Phil Brown
+	 * Records the outcome of a message, or of each message merged into a digest, in the journal
+	 * @param journal the journal
+	 * @param message the message that was sent or failed
+	 * @param msg the built message, or <em>null</em> if it could not be built
+	 * @param success whether or not the message was sent
+	 * @param reply the server's reply, or the reason the message failed
 	 */
-	class Transporter extends AsyncTask<MimeMessage, Void, Void>
+	private static void record(DeliveryJournal journal, MailMessage message, MimeMessage msg, boolean success, String reply)
 	{
-		/** Used to send the message */
-		protected Transport transport;
-		
-		/**
-		 * Constructor
-		 * @param transport the {@link Transport} to use for sending the message(s)
-		 */
-		public Transporter(Transport transport)
+		String messageId = null;
+		try
 		{
-			this.transport = transport;
+			if (msg != null)
+				messageId = msg.getMessageID();
 		}
-		
-		/**
-		 * Sends the given messages on a background thread.<br>
-		 */
-		@Override
-		protected Void doInBackground(MimeMessage... msgs) {
-			
-			for (MimeMessage m : msgs)
-			{
-				try {
-					transport.connect(config.host_smtp_server, config.getUsername(), password);
-					transport.sendMessage(m, m.getAllRecipients());
-					transport.close();
-					//Transport.send(m);
-				} catch (MessagingException e) {
-					e.printStackTrace();
-				}
-			}
-			return null;
+		catch (MessagingException e)
+		{
+			//not available
+		}
+		List<MailMessage> messages = message.merged != null ? message.merged : Collections.singletonList(message);
+		for (MailMessage m : messages)
+		{
+			if (success)
+				journal.sent(m, messageId, reply);
+			else
+				journal.failed(m, messageId, reply);
 		}
-		
 	}
 	
 	/**
-	 * FIXME this is untested. It will also FAIL unless run in an AsyncTask, like the send method above.
-	 * Retrieves messages from the given account's server
-	 * @param protocol specifies whether IMAPE or POP3 should be used. If <em>null</em>, POP3 is used
-	 * @param start starting range of messages to get. Defaults to 0.
-	 * @param stop stopping range of messages to receive. Defaults to 0. If both {@code start} and {@code stop}
-	 * are set to {@code zero}, all messages will be retrieved.
-	 * 
-	 * @return the retrieved messages, or null if there was an error.
+	 * Get the server's reply to the last command
+	 * @param transport the transport
+	 * @return the reply, or <em>null</em> if it is not available
 	 */
-	public Message[] getMessages(Protocol protocol, int start, int stop)
+	private static String lastReply(Transport transport)
 	{
-		if (start < 0 || stop < 0)
+		if (!(transport instanceof SMTPTransport))
 			return null;
-		String p = "pop3";
-		if (protocol != null)
+		String reply = ((SMTPTransport) transport).getLastServerResponse();
+		return reply == null ? null : reply.trim();
+	}
+	
+	/**
+	 * Opens and authenticates a new connection to an SMTP server, and records its capabilities
+	 * @param session the session used to create the transport
+	 * @param host the server, which is {@link MailConfiguration#host_smtp_server} or one of its alternates
+	 * @return the connected transport
+	 * @throws MessagingException if the connection could not be made
+	 */
+	Transport connect(Session session, String host) throws MessagingException
+	{
+		//STARTTLS must not silently fall back to plain text
+		Transport transport = config.smtp_starttls && !config.smtp_plain ? new StartTLSTransport(session)
+		                                                                 : session.getTransport(getSendProtocol());
+		transport.connect(host, config.getUsername(), password);
+		if (transport instanceof SMTPTransport)
+			SmtpCapabilities.record(host, (SMTPTransport) transport);
+		return transport;
+	}
+	
+	/**
+	 * Get the health of the account's SMTP servers. Rebuilt if the configured servers have changed.
+	 * @return the servers
+	 */
+	synchronized SmtpEndpoints getEndpoints()
+	{
+		String[] hosts = SmtpEndpoints.hosts(config);
+		if (endpoints == null || !endpoints.matches(hosts))
+			endpoints = new SmtpEndpoints(hosts);
+		return endpoints;
+	}
+	
+	/**
+	 * Calls the {@link MailListener} through the {@link Platform} (on Android, on the main thread), 
+	 * followed by the message's own listener and those of any messages merged into it
+	 * @param message the message that was sent or failed
+	 * @param success whether or not the message was sent
+	 */
+	private void notifyListener(MailMessage message, final boolean success)
+	{
+		final List<MailListener> listeners = new ArrayList<MailListener>();
+		if (listener != null)
+			listeners.add(listener);
+		if (message.listener != null)
+			listeners.add(message.listener);
+		if (message.merged != null)
 		{
-			switch(protocol)
+			for (MailMessage m : message.merged)
 			{
-			case IMAP : p = "imap";
-						break;
-			case POP3 : p = "pop3";
-						break;
+				if (m.listener != null)
+					listeners.add(m.listener);
 			}
 		}
-		
-		Properties props = new Properties();  
-		
-		Session session = Session.getInstance(props, this); 
-		
-		Store store = null;
-		
-		try {
-			store = session.getStore(p);
-			store.connect(config.host_smtp_server, config.getAddress(), password);
-			Folder f = store.getDefaultFolder();
-			f.open(Folder.READ_ONLY);
-			
-			if (start == 0)
+		if (listeners.isEmpty())
+			return;
+		Platform.getInstance().post(new Runnable() {
+			@Override
+			public void run()
 			{
-				if (stop != 0)
-				{
-					return f.getMessages(0, stop);
-				}
-				else
+				for (MailListener l : listeners)
 				{
-					return f.getMessages();
+					if (success)
+						l.onSuccess(Mailer.this);
+					else
+						l.onError(Mailer.this);
+					l.onComplete(Mailer.this);
 				}
 			}
-			else
+		});
+	}
+	
+	/**
+	 * Records every message sent by this {@code Mailer} in a journal: when it was queued, when it was 
+	 * sent or failed, and the server's reply. Recording happens in the background and does not slow down 
+	 * sending. Each message's journal ID can be found from its recipients or Message-ID.
+	 * @param journal the journal, or <em>null</em> to stop recording
+	 */
+	public void setJournal(DeliveryJournal journal)
+	{
+		this.journal = journal;
+	}
+	
+	/**
+	 * Get the journal in which messages are recorded
+	 * @return the journal, or <em>null</em> if messages are not recorded
+	 */
+	public DeliveryJournal getJournal()
+	{
+		return journal;
+	}
+	
+	/**
+	 * Sets how many messages may be sent at once, each over its own connection. Some connections can 
+	 * be reserved for {@link Priority#TRANSACTIONAL} mail, so that it is sent promptly even while a bulk 
+	 * mailing is using all of the others.
+	 * @param maxConnections the largest number of connections. Defaults to {@link #DEFAULT_MAX_CONNECTIONS}.
+	 * @param reservedConnections connections only transactional mail may use. Must be less than 
+	 * {@code maxConnections}. Defaults to {@link #DEFAULT_RESERVED_CONNECTIONS}.
+	 */
+	public void setMaxConnections(int maxConnections, int reservedConnections)
+	{
+		dispatcher.setLimits(maxConnections, reservedConnections);
+	}
+	
+	/**
+	 * Enables coalescing. Plain text and HTML messages sent to the same recipients within the window are 
+	 * merged into a single digest, which greatly reduces the number of SMTP transactions during a burst 
+	 * of notifications. The window starts with the first message, so no message is delayed by more than 
+	 * {@code windowMillis}. Messages with attachments or inline resources, and transactional messages, 
+	 * are never delayed.
+	 * @param windowMillis how long to wait for more messages, in milliseconds. 0 disables coalescing (the default).
+	 * @param maxMessages a digest is sent as soon as it contains this many messages
+	 * @see #DEFAULT_COALESCE_SIZE
+	 */
+	public void setCoalescing(long windowMillis, int maxMessages)
+	{
+		coalescer.setWindow(windowMillis, maxMessages);
+		if (windowMillis <= 0)
+			coalescer.flushAll();
+	}
+	
+	/**
+	 * Sends all messages being held for coalescing right away
+	 */
+	public void flushCoalesced()
+	{
+		coalescer.flushAll();
+	}
+	
+	/**
+	 * Get the number of messages waiting for a connection
+	 * @param priority the priority
+	 * @return the number of queued messages with the given priority
+	 */
+	public int getQueuedCount(Priority priority)
+	{
+		return dispatcher.queued(priority);
+	}
+	
+	/**
+	 * Opens and authenticates a sending connection in the background, so that the next message does 
+	 * not wait for the DNS lookup, TLS handshake and login. Call this when a message is likely to be 
+	 * sent soon, such as when a compose screen opens. Safe to call from the main thread.
+	 * @see #warmUp(int)
+	 */
+	public void warmUp()
+	{
+		warmUp(1);
+	}
+	
+	/**
+	 * Opens and authenticates sending connections in the background, and keeps them open for 
+	 * {@link #WARM_HOLD} milliseconds even if no message is sent. Safe to call from the main thread.
+	 * @param connections the number of connections to open. At most the largest number of connections 
+	 * set with {@link #setMaxConnections(int, int)}.
+	 */
+	public void warmUp(int connections)
+	{
+		connections = Math.min(connections, dispatcher.getMaxConnections());
+		if (connections <= 0)
+			return;
+		synchronized (this)
+		{
+			warmConnections = Math.max(warmConnections, connections);
+			warmUntil = System.currentTimeMillis() + WARM_HOLD;
+			scheduleWarmCheck();
+		}
+		pool.warm(connections);
+	}
+	
+	/**
+	 * Enables or disables adaptive warm-up. While enabled, the recent send rate and the time each send 
+	 * takes are used to predict how many connections will be needed at once, and that many are kept 
+	 * open and authenticated. When sending stops, the prediction decays and the idle connections are 
+	 * closed.
+	 * @param enabled {@code true} to follow the send rate. Disabled by default.
+	 */
+	public void setAdaptiveWarmUp(boolean enabled)
+	{
+		synchronized (this)
+		{
+			adaptiveWarmUp = enabled;
+			if (enabled)
+				scheduleWarmCheck();
+		}
+	}
+	
+	/**
+	 * Schedules the next check of the warm connections, unless one is already scheduled. Must be 
+	 * called while synchronized on this {@code Mailer}.
+	 */
+	private void scheduleWarmCheck()
+	{
+		if (warmTimer != null)
+			return;
+		lastSample = System.currentTimeMillis();
+		warmTimer = TimerWheel.getInstance().schedule(new Runnable() {
+			@Override
+			public void run()
 			{
-				if (stop != 0)
-				{
-					return f.getMessages(start, stop);
-				}
-				else
-				{
-					int[] array = new int[stop - start];
-					for (int i = 0; i < array.length; i++)
+				//the check makes network requests, so keep it off the timer thread
+				dispatcher.execute(new Runnable() {
+					@Override
+					public void run()
 					{
-						array[i] = i;
+						checkWarmConnections();
 					}
-					return f.getMessages(array);
-				}
+				});
 			}
-			
-		} catch (Throwable t) {
-			Log.w(TAG, "Could not complete request", t);
-			return null;
+		}, WARM_INTERVAL);
+	}
+	
+	/**
+	 * Samples the send rate, and keeps the predicted or requested number of connections open. When 
+	 * fewer are needed than at the last check, the idle connections beyond that number are closed. 
+	 * Called every {@link #WARM_INTERVAL} milliseconds while adaptive warm-up is enabled or 
+	 * connections opened by {@link #warmUp(int)} are being held.
+	 */
+	private void checkWarmConnections()
+	{
+		int target = 0;
+		int previous;
+		int max = dispatcher.getMaxConnections();
+		synchronized (this)
+		{
+			warmTimer = null;
+			long now = System.currentTimeMillis();
+			if (adaptiveWarmUp)
+			{
+				predictor.sample(now - lastSample);
+				target = predictor.predict(max);
+				if (DEBUG)
+					Platform.getInstance().debug(TAG, String.format("Send rate %.2f/s. Keeping %d connections warm.", predictor.getRate(), target), null);
+			}
+			if (now < warmUntil)
+				target = Math.max(target, warmConnections);
+			else
+				warmConnections = 0;
+			if (adaptiveWarmUp || now < warmUntil)
+				scheduleWarmCheck();
+			previous = warmTarget;
+			warmTarget = target;
+		}
+		if (target < previous)
+			pool.trim(target);
+		if (target > 0)
+			pool.maintain(target);
+	}
+	
+	/**
+	 * Closes idle sending connections, and the connections used to receive mail. Sending connections 
+	 * are also closed automatically once they have been idle for a minute. Connections held open by 
+	 * {@link #warmUp(int)} are released; adaptive warm-up stays enabled.
+	 */
+	public void closeConnections()
+	{
+		synchronized (this)
+		{
+			warmConnections = 0;
+			warmUntil = 0;
+			warmTarget = 0;
+		}
+		pool.close();
+		List<Store> open;
+		synchronized (this)
+		{
+			open = new ArrayList<Store>(stores.values());
+			stores.clear();
+		}
+		for (Store store : open)
+		{
+			try
+			{
+				store.close();
+			}
+			catch (MessagingException e)
+			{
+				Platform.getInstance().warn(TAG, "Could not close store", e);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the given message at a later time. Scheduled messages are held in a shared {@link TimerWheel},
+	 * so very large numbers of them can be pending at once. If a spool directory has been set, the message
+	 * is also written there, so it is still sent if the app is restarted.
+	 * @param message the message to send
+	 * @param time the time at which to send the message. Times in the past send the message right away.
+	 * @return a handle that can be used to cancel delivery
+	 * @throws IOException if the message could not be written to the spool directory
+	 * @see #setSpoolDirectory(File)
+	 */
+	public ScheduledMail sendAt(MailMessage message, Date time) throws IOException
+	{
+		ScheduledMail mail = new ScheduledMail(this, message, time.getTime());
+		File directory;
+		synchronized (scheduled)
+		{
+			directory = spoolDirectory;
+		}
+		if (directory != null)
+			mail.spool(directory);
+		synchronized (scheduled)
+		{
+			scheduled.add(mail);
+		}
+		mail.schedule();
+		return mail;
+	}
+	
+	/**
+	 * Sends the given message after a delay
+	 * @param message the message to send
+	 * @param delayMillis the delay, in milliseconds
+	 * @return a handle that can be used to cancel delivery
+	 * @throws IOException if the message could not be written to the spool directory
+	 * @see #sendAt(MailMessage, Date)
+	 */
+	public ScheduledMail sendAfter(MailMessage message, long delayMillis) throws IOException
+	{
+		return sendAt(message, new Date(System.currentTimeMillis() + Math.max(0, delayMillis)));
+	}
+	
+	/**
+	 * Sets the directory in which scheduled messages are persisted until they are sent. Messages already
+	 * in the directory, from an earlier run, are scheduled again, and messages that were due while the app
+	 * was not running are sent right away. Messages that are already scheduled are also written to the
+	 * directory, and are not loaded a second time if the same directory is set again.<p>
+	 * Only the messages are persisted - never the password - so the app must create this {@code Mailer}
+	 * and set its spool directory again each time it starts. Use a separate directory for each account.
+	 * @param directory the spool directory, or <em>null</em> to keep scheduled messages only in memory
+	 * @return the messages that were loaded from the directory
+	 * @throws IOException if the directory could not be created, or a scheduled message could not be written to it
+	 */
+	public List<ScheduledMail> setSpoolDirectory(File directory) throws IOException
+	{
+		List<ScheduledMail> restored = new ArrayList<ScheduledMail>();
+		if (directory != null)
+		{
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Could not create spool directory " + directory);
+			//files of messages that are already scheduled, for example if the same directory is set again
+			Set<File> loaded = new HashSet<File>();
+			synchronized (scheduled)
+			{
+				for (ScheduledMail mail : scheduled)
+				{
+					File file = mail.getSpoolFile();
+					if (file != null)
+						loaded.add(file.getAbsoluteFile());
+				}
+			}
+			File[] files = directory.listFiles();
+			if (files != null)
+			{
+				for (File file : files)
+				{
+					if (!file.getName().endsWith(ScheduledMail.EXTENSION) || loaded.contains(file.getAbsoluteFile()))
+						continue;
+					try
+					{
+						restored.add(ScheduledMail.load(this, file));
+					}
+					catch (IOException e)
+					{
+						Platform.getInstance().warn(TAG, "Could not load scheduled message " + file, e);
+					}
+				}
+			}
+		}
+		List<ScheduledMail> pending;
+		synchronized (scheduled)
+		{
+			spoolDirectory = directory;
+			pending = new ArrayList<ScheduledMail>(scheduled);
+			scheduled.addAll(restored);
+		}
+		if (directory != null)
+		{
+			for (ScheduledMail mail : pending)
+				mail.spool(directory);
+		}
+		for (ScheduledMail mail : restored)
+			mail.schedule();
+		return restored;
+	}
+	
+	/**
+	 * Get the messages waiting to be sent
+	 * @return the scheduled messages, in the order they were scheduled
+	 */
+	public List<ScheduledMail> getScheduledMail()
+	{
+		synchronized (scheduled)
+		{
+			return new ArrayList<ScheduledMail>(scheduled);
+		}
+	}
+	
+	/**
+	 * Removes a message that has been sent or cancelled from the scheduled messages
+	 * @param mail the message
+	 */
+	void unschedule(ScheduledMail mail)
+	{
+		synchronized (scheduled)
+		{
+			scheduled.remove(mail);
+		}
+	}
+	
+	/**
+	 * Builds the MIME message for the given message. A plain text body is sent as-is, an HTML body with 
+	 * inline resources is sent as {@code multipart/related}, and when both text and HTML are given they 
+	 * are wrapped in {@code multipart/alternative}. The body is placed in a {@code multipart/mixed} 
+	 * with the attachment, if any.
+	 * @param session the mail session
+	 * @param message the message to build
+	 * @param budget records the size of each part
+	 * @return the MIME message
+	 * @throws MessagingException if the message could not be built
+	 * @throws IOException if an inline resource could not be read
+	 */
+	private MimeMessage buildMessage(Session session, MailMessage message, ByteBudget budget) throws MessagingException, IOException
+	{
+		MimeMessage msg = new MimeMessage(session); 
+ 
+		msg.setFrom(new InternetAddress(config.getAddress())); 
+       
+		InternetAddress[] recipients = new InternetAddress[message.destinations.length]; 
+		for (int i = 0; i < message.destinations.length; i++) { 
+			recipients[i] = new InternetAddress(message.destinations[i]); 
+		} 
+		msg.setRecipients(message.bcc ? MimeMessage.RecipientType.BCC : MimeMessage.RecipientType.TO, recipients); 
+		
+		if (message.subject != null)
+			msg.setSubject(message.subject, "UTF-8"); 
+		
+		msg.setSentDate(new Date()); 
+      
+		// choose encodings every server is known to accept, since any of them may send the message
+		boolean allow8bit = allow8bit();
+		Multipart multipart = new MimeMultipart(); 
+      
+		// setup message body 
+		MimeBodyPart textPart = null;
+		if (message.message != null || message.html == null)
+		{
+			textPart = new MimeBodyPart();
+			setText(textPart, message.message == null ? "" : message.message, "plain", allow8bit, budget);
+		}
+		MimeBodyPart htmlPart = null;
+		if (message.html != null)
+		{
+			htmlPart = new MimeBodyPart();
+			setText(htmlPart, message.html, "html", allow8bit, budget);
+			
+			if (message.inline != null && !message.inline.isEmpty())
+			{
+				MimeMultipart related = new MimeMultipart("related");
+				related.addBodyPart(htmlPart);
+				for (Map.Entry<String, File> resource : message.inline.entrySet())
+				{
+					File file = resource.getValue();
+					MimeBodyPart inlinePart = EncodedPartCache.getInstance().getPart(file);
+					inlinePart.setContentID("<" + resource.getKey() + ">");
+					inlinePart.setDisposition(Part.INLINE);
+					inlinePart.setFileName(file.getName());
+					budget.add("cid:" + resource.getKey(), TransferEncoding.forBinary(file.length()));
+					related.addBodyPart(inlinePart);
+				}
+				htmlPart = new MimeBodyPart();
+				htmlPart.setContent(related);
+			}
+		}
+		
+		MimeBodyPart body;
+		if (textPart != null && htmlPart != null)
+		{
+			MimeMultipart alternative = new MimeMultipart("alternative");
+			alternative.addBodyPart(textPart);
+			alternative.addBodyPart(htmlPart);
+			body = new MimeBodyPart();
+			body.setContent(alternative);
+		}
+		else if (htmlPart != null)
+			body = htmlPart;
+		else
+			body = textPart;
+		multipart.addBodyPart(body); 
+		
+		File attachment = message.attachment;
+		if (attachment != null)
+		{
+			try
+			{
+				String name = attachment.getName();
+				DataSource source = new FileDataSource(attachment); 
+				boolean zip = shouldCompress(attachment);
+				EncodedPartCache.Entry entry = null;
+				if (zip || !source.getContentType().startsWith("text/"))
+				{
+					//binary content is always base64, so encode it once and reuse it for later messages
+					entry = EncodedPartCache.getInstance().get(attachment, zip);
+				}
+				
+				MimeBodyPart attachmentBodyPart;
+				if (entry != null)
+				{
+					attachmentBodyPart = EncodedPartCache.getInstance().createPart(entry);
+					if (entry.zipped)
+					{
+						name = name + ".zip";
+						budget.addCompressionSavings(entry.originalSize - entry.rawSize);
+					}
+					budget.add(name, TransferEncoding.forBinary(entry.rawSize));
+				}
+				else
+				{
+					attachmentBodyPart = new MimeBodyPart(); 
+					attachmentBodyPart.setDataHandler(new DataHandler(source)); 
+					TransferEncoding attachmentEncoding = TransferEncoding.forBinary(attachment.length());
+					if (!source.getContentType().startsWith("text/"))
+					{
+						//skip JavaMail's scan of the file
+						attachmentBodyPart.setHeader("Content-Transfer-Encoding", attachmentEncoding.getEncoding());
+					}
+					budget.add(name, attachmentEncoding);
+				}
+				attachmentBodyPart.setFileName(name); 
+		 
+				multipart.addBodyPart(attachmentBodyPart); 
+			} catch (Throwable t)
+			{
+				Platform.getInstance().warn(TAG, "Could not attach file " + attachment, t);
+			}
+		}
+ 
+		// Put parts in message 
+		msg.setContent(multipart); 
+		
+		byteBudget = budget;
+		if (DEBUG)
+			Platform.getInstance().debug(TAG, budget.toString(), null);
+		return msg;
+	}
+	
+	/**
+	 * Estimates the size of the given message on the wire, without building or encoding it. Text is 
+	 * scanned once to choose its encoding, and attachments and inline resources are measured by their 
+	 * file sizes plus base64 overhead. An attachment that would be zipped only counts once it has been 
+	 * compressed and cached, so the estimate does not overstate the size. Messages are checked again 
+	 * with their exact encoded size once built, before any of it is uploaded.
+	 * @param message the message
+	 * @return the estimated size, in bytes
+	 */
+	public long estimateSize(MailMessage message)
+	{
+		boolean allow8bit = allow8bit();
+		long size = headerSize(message);
+		if (message.message != null || message.html == null)
+			size += TransferEncoding.forText(message.message == null ? "" : message.message, allow8bit).getEncodedSize();
+		if (message.html != null)
+		{
+			size += TransferEncoding.forText(message.html, allow8bit).getEncodedSize();
+			if (message.inline != null)
+			{
+				for (File file : message.inline.values())
+					size += TransferEncoding.base64Size(file.length());
+			}
+		}
+		File attachment = message.attachment;
+		if (attachment != null && attachment.isFile())
+		{
+			if (shouldCompress(attachment))
+			{
+				EncodedPartCache.Entry entry = EncodedPartCache.getInstance().peek(attachment, true);
+				if (entry != null)
+					size += TransferEncoding.base64Size(entry.rawSize);
+			}
+			else if (new FileDataSource(attachment).getContentType().startsWith("text/"))
+				size += attachment.length();
+			else
+				size += TransferEncoding.base64Size(attachment.length());
+		}
+		return size;
+	}
+	
+	/**
+	 * Determines whether or not text may be sent as 8bit. A message is built before its connection is 
+	 * chosen, so every SMTP server of the account must have advertised 8BITMIME.
+	 * @return {@code true} if every server is known to accept 8bit content
+	 */
+	private boolean allow8bit()
+	{
+		for (String host : SmtpEndpoints.hosts(config))
+		{
+			SmtpCapabilities capabilities = SmtpCapabilities.get(host);
+			if (capabilities == null || !capabilities.eightBitMime)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Estimates the size of the headers of a message, including an allowance for MIME boundaries
+	 * @param message the message
+	 * @return the estimated size, in bytes
+	 */
+	private static long headerSize(MailMessage message)
+	{
+		long size = HEADER_ALLOWANCE;
+		if (message.destinations != null)
+		{
+			for (String destination : message.destinations)
+				size += destination.length() + 2;
+		}
+		if (message.subject != null)
+			size += message.subject.length();
+		return size;
+	}
+	
+	/**
+	 * Checks the estimated size of a message against the largest message a server accepts, as 
+	 * advertised with the SMTP SIZE extension when droidMail last connected to it. The message is 
+	 * only measured if the server's limit is known.
+	 * @param message the message
+	 * @param host the server
+	 * @throws MessagingException if the message is larger than the server accepts
+	 * @see #estimateSize(MailMessage)
+	 */
+	private void checkSize(MailMessage message, String host) throws MessagingException
+	{
+		SmtpCapabilities capabilities = SmtpCapabilities.get(host);
+		if (capabilities != null && capabilities.maxSize > 0)
+			checkSize(estimateSize(message), host);
+	}
+	
+	/**
+	 * Checks the size of a message against the largest message a server accepts
+	 * @param size the message size, in bytes
+	 * @param host the server
+	 * @throws MessagingException if the message is larger than the server accepts, as advertised when 
+	 * droidMail last connected to it
+	 */
+	private static void checkSize(long size, String host) throws MessagingException
+	{
+		SmtpCapabilities capabilities = SmtpCapabilities.get(host);
+		if (capabilities != null && capabilities.maxSize > 0 && size > capabilities.maxSize)
+			throw new MessagingException("Message size of about " + size + " bytes exceeds the server limit of " + capabilities.maxSize + " bytes");
+	}
+	
+	/**
+	 * Sets the text content of the given part as UTF-8, using the smallest encoding the server accepts
+	 * @param part the part
+	 * @param text the text
+	 * @param subtype the text subtype, such as <em>plain</em> or <em>html</em>
+	 * @param allow8bit whether or not the server accepts 8bit content
+	 * @param budget records the part's size
+	 * @throws MessagingException if the content could not be set
+	 */
+	private static void setText(MimeBodyPart part, String text, String subtype, boolean allow8bit, ByteBudget budget) throws MessagingException
+	{
+		TransferEncoding encoding = TransferEncoding.forText(text, allow8bit);
+		part.setText(text, "UTF-8", subtype); 
+		part.setHeader("Content-Transfer-Encoding", encoding.getEncoding());
+		budget.add(subtype, encoding);
+	}
+	
+	/**
+	 * Get the JavaMail protocol used for sending mail with this configuration
+	 * @return <em>smtp</em> for STARTTLS and plain text connections, otherwise <em>smtps</em>
+	 */
+	private String getSendProtocol()
+	{
+		return config.smtp_starttls || config.smtp_plain ? "smtp" : "smtps";
+	}
+	
+	/**
+	 * Builds the JavaMail properties for sending mail with this configuration. Implicit SSL connections
+	 * are made to {@link MailConfiguration#socket_port}, while STARTTLS connections are made to 
+	 * {@link MailConfiguration#smtp_port} and upgraded once connected. A server that does not offer STARTTLS 
+	 * is refused by {@link StartTLSTransport} before logging in. Both use {@link TLSSocketFactory}, 
+	 * so TLS sessions are resumed when reconnecting to the same host. {@link MailConfiguration#smtp_plain 
+	 * Plain text} connections are made to {@link MailConfiguration#smtp_port} and never upgraded.
+	 * @return the properties
+	 */
+	private Properties getSendProperties()
+	{
+		String prefix = "mail." + getSendProtocol();
+		Properties props = new Properties(); 
+		props.put("mail.debug", String.valueOf(DEBUG));
+		props.put(prefix + ".host", config.host_smtp_server); 
+		props.put(prefix + ".auth", String.valueOf(config.smtp_auth)); 
+		props.put(prefix + ".connectiontimeout", String.valueOf(config.connection_timeout)); 
+		props.put(prefix + ".timeout", String.valueOf(config.read_timeout)); 
+		props.put(prefix + ".socketFactory.fallback", "false"); 
+		//lets JavaMail send 8bit text to 8BITMIME servers before their capabilities are cached. Signed
+		//messages must be sent exactly as they were signed, so are never converted.
+		props.put(prefix + ".allow8bitmime", String.valueOf(!DkimSigner.isEnabled(config))); 
+		//deliver to the accepted recipients even if the server refuses some of them
+		props.put(prefix + ".sendpartial", "true"); 
+		if (config.smtp_plain)
+		{
+			props.put(prefix + ".port", String.valueOf(config.smtp_port)); 
+		}
+		else if (config.smtp_starttls)
+		{
+			props.put(prefix + ".port", String.valueOf(config.smtp_port)); 
+			props.put(prefix + ".starttls.enable", "true"); 
+			props.put(prefix + ".socketFactory.class", TLSSocketFactory.StartTLS.class.getName()); 
+		}
+		else
+		{
+			props.put(prefix + ".port", String.valueOf(config.socket_port)); 
+			props.put(prefix + ".socketFactory.port", String.valueOf(config.socket_port)); 
+			props.put(prefix + ".socketFactory.class", TLSSocketFactory.class.getName()); 
+		}
+		return props;
+	}
+	
+	/**
+	 * Get the dispatcher that runs sending work
+	 * @return the dispatcher
+	 */
+	Dispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+	
+	/**
+	 * Get the session used for sending mail. The session is created once, and only rebuilt if the
+	 * configuration has changed since it was last used.
+	 * @return the session
+	 */
+	synchronized Session getSendSession()
+	{
+		Properties props = getSendProperties();
+		if (sendSession == null || !props.equals(sendProperties))
+		{
+			sendSession = Session.getInstance(props, this);
+			sendProperties = props;
+		}
+		return sendSession;
+	}
+	
+	/**
+	 * Determines whether or not the given attachment should be zipped. Compression must be enabled, 
+	 * the attachment must be at least {@link #compressionThreshold} bytes, and it must not already be 
+	 * in a compressed format.
+	 * @param attachment the attachment
+	 * @return {@code true} if the attachment should be zipped
+	 */
+	private boolean shouldCompress(File attachment)
+	{
+		if (compressionThreshold <= 0 || attachment.length() < compressionThreshold)
+			return false;
+		String name = attachment.getName().toLowerCase(Locale.US);
+		for (String extension : COMPRESSED_EXTENSIONS)
+		{
+			if (name.endsWith(extension))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets the size above which attachments are zipped before they are sent. Files that are already
+	 * compressed (such as images, audio and archives) are never zipped, and an attachment is only sent
+	 * zipped if that saves at least ten percent.
+	 * @param thresholdBytes the minimum attachment size, in bytes, or 0 to disable compression (the default)
+	 */
+	public void setAttachmentCompression(long thresholdBytes)
+	{
+		compressionThreshold = thresholdBytes;
+	}
+	
+	/**
+	 * Get the byte budget of the most recently sent message, which shows the encoding and estimated
+	 * size of each part.
+	 * @return the budget, or <em>null</em> if no message has been sent
+	 */
+	public ByteBudget getByteBudget()
+	{
+		return byteBudget;
+	}
+	
+	/**
+	 * set {@link #DEBUG} to true
+	 */
+	public void enableDebugMode()
+	{
+		DEBUG = true;
+	}
+	
+	/**
+	 * set {@link #DEBUG} to false
+	 */
+	public void disableDebugMode()
+	{
+		DEBUG = false;
+	}
+	
+	/**
+	 * Retrieves messages from the given account's server. This makes network requests, so it must not be
+	 * called on the main thread. Message content is downloaded lazily, when it is first read; use 
+	 * {@link #getHeaders(Protocol, String, int, int)} to read only the envelopes of many messages, or
+	 * {@link #iterateMessages(Protocol, String, int)} to process a large mailbox in constant memory.
+	 * @param protocol specifies whether IMAP or POP3 should be used. If <em>null</em>, POP3 is used
+	 * @param start number of the first message to get, starting at 1. Defaults to 0, which also means the first message.
+	 * @param stop number of the last message to get. Defaults to 0. If {@code stop} is {@code zero},
+	 * messages are retrieved up to the last message in the inbox.
+	 * 
+	 * @return the retrieved messages, or null if there was an error.
+	 */
+	public Message[] getMessages(Protocol protocol, int start, int stop)
+	{
+		if (start < 0 || stop < 0)
+			return null;
+		try {
+			//the folder is left open, so the returned messages can load their content
+			Folder f = openFolder(protocol, null, Folder.READ_ONLY);
+			int[] range = range(f, start, stop);
+			if (range == null)
+				return new Message[0];
+			return f.getMessages(range[0], range[1]);
+		} catch (Throwable t) {
+			Platform.getInstance().warn(TAG, "Could not complete request", t);
+			return null;
+		}
+	}
+	
+	/**
+	 * Iterates over every message in a folder, fetching them in chunks so that memory use does not grow
+	 * with the size of the folder. Close the iterator to stop early.
+	 * @param protocol specifies whether IMAP or POP3 should be used. If <em>null</em>, POP3 is used
+	 * @param folderName the folder to read, or <em>null</em> for the inbox. POP3 only supports the inbox.
+	 * @param chunkSize number of messages fetched at once, such as {@link MessageIterator#DEFAULT_CHUNK_SIZE}
+	 * @return the iterator. No request is made until it is first used.
+	 */
+	public MessageIterator iterateMessages(Protocol protocol, String folderName, int chunkSize)
+	{
+		return new MessageIterator(this, protocol, folderName, chunkSize);
+	}
+	
+	/**
+	 * Retrieves the envelopes of a range of messages, such as their senders, subjects, dates, sizes and
+	 * flags, without downloading any message content. All of the envelopes are fetched in a single 
+	 * request. This makes network requests, so it must not be called on the main thread.
+	 * @param protocol specifies whether IMAP or POP3 should be used. If <em>null</em>, POP3 is used
+	 * @param folderName the folder to read, or <em>null</em> for the inbox. POP3 only supports the inbox.
+	 * @param start number of the first message, starting at 1. 0 also means the first message.
+	 * @param stop number of the last message, or 0 for the last message in the folder
+	 * @return the message summaries, in message number order
+	 * @throws MessagingException if the messages could not be retrieved
+	 */
+	public List<MessageSummary> getHeaders(Protocol protocol, String folderName, int start, int stop) throws MessagingException
+	{
+		Folder folder = openFolder(protocol, folderName, Folder.READ_ONLY);
+		try
+		{
+			int[] range = range(folder, start, stop);
+			if (range == null)
+				return new ArrayList<MessageSummary>();
+			return summarize(folder, folder.getMessages(range[0], range[1]));
+		}
+		finally
+		{
+			closeFolder(folder);
+		}
+	}
+	
+	/**
+	 * Fetches the envelopes of the given messages in a single request, and summarizes them
+	 * @param folder the open folder containing the messages
+	 * @param messages the messages
+	 * @return the message summaries
+	 * @throws MessagingException if the envelopes could not be fetched
+	 */
+	static List<MessageSummary> summarize(Folder folder, Message[] messages) throws MessagingException
+	{
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.FLAGS);
+		if (folder instanceof IMAPFolder)
+		{
+			profile.add(FetchProfile.Item.CONTENT_INFO);
+			profile.add(UIDFolder.FetchProfileItem.UID);
+		}
+		folder.fetch(messages, profile);
+		List<MessageSummary> summaries = new ArrayList<MessageSummary>(messages.length);
+		for (Message message : messages)
+			summaries.add(new MessageSummary(folder, message));
+		return summaries;
+	}
+	
+	/**
+	 * Retrieves the beginning of a message's text, without downloading the rest of the message or any 
+	 * attachments. Only the first {@code maxBytes} of the text part are requested from the server, and 
+	 * the message is not marked as read. Requires IMAP.
+	 * This makes network requests, so it must not be called on the main thread.
+	 * @param folderName the folder containing the message, or <em>null</em> for the inbox
+	 * @param uid the message UID
+	 * @param maxBytes the largest number of bytes of encoded text to download
+	 * @return the plain text of the message if it has any, otherwise its HTML. Returns <em>null</em> if the 
+	 * message does not exist or has no text.
+	 * @throws MessagingException if the text could not be retrieved
+	 */
+	public String getText(String folderName, long uid, final int maxBytes) throws MessagingException
+	{
+		IMAPFolder folder = (IMAPFolder) openFolder(Protocol.IMAP, folderName, Folder.READ_ONLY);
+		try
+		{
+			Message message = folder.getMessageByUID(uid);
+			if (message == null)
+				return null;
+			final int number = message.getMessageNumber();
+			final TextSection[] text = new TextSection[1];
+			BODY body = (BODY) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+				@Override
+				public Object doCommand(IMAPProtocol protocol) throws ProtocolException
+				{
+					BODYSTRUCTURE structure = protocol.fetchBodyStructure(number);
+					if (structure == null)
+						return null;
+					text[0] = TextSection.find(structure, "", "plain");
+					if (text[0] == null)
+						text[0] = TextSection.find(structure, "", "html");
+					if (text[0] == null)
+						return null;
+					return protocol.peekBody(number, text[0].section, 0, maxBytes);
+				}
+			});
+			if (body == null || body.getByteArray() == null)
+				return text[0] == null ? null : "";
+			ByteArray data = body.getByteArray();
+			return text[0].decode(data.getBytes(), data.getStart(), data.getCount());
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Could not decode message text", e);
+		}
+		finally
+		{
+			closeFolder(folder);
+		}
+	}
+	
+	/**
+	 * Get the file names of a message's attachments, without downloading them. Requires IMAP.
+	 * This makes network requests, so it must not be called on the main thread.
+	 * @param folderName the folder containing the message, or <em>null</em> for the inbox
+	 * @param uid the message UID
+	 * @return the attachment file names, or <em>null</em> if the message does not exist
+	 * @throws MessagingException if the message structure could not be retrieved
+	 */
+	public List<String> getAttachmentNames(String folderName, long uid) throws MessagingException
+	{
+		Folder folder = openFolder(Protocol.IMAP, folderName, Folder.READ_ONLY);
+		try
+		{
+			Message message = ((IMAPFolder) folder).getMessageByUID(uid);
+			if (message == null)
+				return null;
+			List<Part> attachments = new ArrayList<Part>();
+			findAttachments(message, attachments);
+			List<String> names = new ArrayList<String>();
+			for (Part part : attachments)
+				names.add(part.getFileName());
+			return names;
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Could not read message structure", e);
+		}
+		finally
+		{
+			closeFolder(folder);
+		}
+	}
+	
+	/**
+	 * Downloads an attachment directly to a file. The attachment is fetched from the server in blocks 
+	 * of {@link #FETCH_SIZE} bytes and decoded as it is written, so it is never held in memory, and the 
+	 * rest of the message is not downloaded. Requires IMAP.
+	 * This makes network requests, so it must not be called on the main thread.
+	 * @param folderName the folder containing the message, or <em>null</em> for the inbox
+	 * @param uid the message UID
+	 * @param fileName the name of the attachment
+	 * @param target the file to write
+	 * @return the number of bytes written, or -1 if the message or attachment does not exist
+	 * @throws MessagingException if the attachment could not be retrieved
+	 * @throws IOException if the file could not be written
+	 * @see #getAttachmentNames(String, long)
+	 */
+	public long downloadAttachment(String folderName, long uid, String fileName, File target) throws MessagingException, IOException
+	{
+		Folder folder = openFolder(Protocol.IMAP, folderName, Folder.READ_ONLY);
+		try
+		{
+			IMAPMessage message = (IMAPMessage) ((IMAPFolder) folder).getMessageByUID(uid);
+			if (message == null)
+				return -1;
+			message.setPeek(true);
+			List<Part> attachments = new ArrayList<Part>();
+			findAttachments(message, attachments);
+			for (Part part : attachments)
+			{
+				if (!fileName.equals(part.getFileName()))
+					continue;
+				InputStream in = part.getInputStream();
+				OutputStream out = new FileOutputStream(target);
+				long count = 0;
+				try
+				{
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = in.read(buffer)) != -1)
+					{
+						out.write(buffer, 0, read);
+						count += read;
+					}
+				}
+				finally
+				{
+					in.close();
+					out.close();
+				}
+				return count;
+			}
+			return -1;
+		}
+		finally
+		{
+			closeFolder(folder);
+		}
+	}
+	
+	/**
+	 * Marks messages as read or unread. All of the messages are changed with a single command. Requires IMAP.
+	 * This makes network requests, so it must not be called on the main thread.
+	 * @param folderName the folder containing the messages, or <em>null</em> for the inbox
+	 * @param uids the message UIDs
+	 * @param seen {@code true} to mark the messages as read, {@code false} to mark them as unread
+	 * @throws MessagingException if the messages could not be changed
+	 */
+	public void setSeen(String folderName, long[] uids, boolean seen) throws MessagingException
+	{
+		runUidCommand(folderName, uids, new StoreFlag("\\Seen", seen));
+	}
+	
+	/**
+	 * Flags or unflags messages. All of the messages are changed with a single command. Requires IMAP.
+	 * This makes network requests, so it must not be called on the main thread.
+	 * @param folderName the folder containing the messages, or <em>null</em> for the inbox
+	 * @param uids the message UIDs
+	 * @param flagged {@code true} to flag the messages, {@code false} to remove the flag
+	 * @throws MessagingException if the messages could not be changed
+	 */
+	public void setFlagged(String folderName, long[] uids, boolean flagged) throws MessagingException
+	{
+		runUidCommand(folderName, uids, new StoreFlag("\\Flagged", flagged));
+	}
+	
+	/**
+	 * Moves messages to another folder. Servers that support the IMAP MOVE extension move all of the 
+	 * messages with a single command. Otherwise the messages are copied, then deleted. Requires IMAP.
+	 * This makes network requests, so it must not be called on the main thread.
+	 * @param folderName the folder containing the messages, or <em>null</em> for the inbox
+	 * @param uids the message UIDs
+	 * @param destination the name of the folder to move the messages to
+	 * @throws MessagingException if the messages could not be moved
+	 * @see #deleteMessages(String, long[])
+	 */
+	public void moveMessages(String folderName, long[] uids, final String destination) throws MessagingException
+	{
+		runUidCommand(folderName, uids, new UidCommand() {
+			@Override
+			void run(IMAPProtocol protocol, String set) throws ProtocolException
+			{
+				if (protocol.hasCapability("MOVE"))
+				{
+					run(protocol, "UID MOVE", set, mailbox(destination));
+				}
+				else
+				{
+					run(protocol, "UID COPY", set, mailbox(destination));
+					DELETE.run(protocol, set);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Permanently deletes messages. The messages are marked as deleted and expunged. Servers that support 
+	 * the IMAP UIDPLUS extension expunge only the given messages; otherwise any other messages already 
+	 * marked as deleted in the folder are expunged too. Requires IMAP.
+	 * This makes network requests, so it must not be called on the main thread.
+	 * @param folderName the folder containing the messages, or <em>null</em> for the inbox
+	 * @param uids the message UIDs
+	 * @throws MessagingException if the messages could not be deleted
+	 */
+	public void deleteMessages(String folderName, long[] uids) throws MessagingException
+	{
+		runUidCommand(folderName, uids, DELETE);
+	}
+	
+	/**
+	 * Opens a folder for writing and runs a command for a set of messages. The UIDs are sorted and joined 
+	 * into ranges, such as <em>1:40,52,60:75</em>, so that long runs of messages take little space. Very 
+	 * fragmented sets are split into several commands of at most {@link #MAX_UID_RANGES} ranges, so that 
+	 * the command line stays within server limits.
+	 * @param folderName the folder containing the messages, or <em>null</em> for the inbox
+	 * @param uids the message UIDs, in any order. Duplicates are ignored.
+	 * @param command the command
+	 * @throws MessagingException if the command failed
+	 */
+	private void runUidCommand(String folderName, long[] uids, final UidCommand command) throws MessagingException
+	{
+		if (uids == null || uids.length == 0)
+			return;
+		long[] sorted = uids.clone();
+		Arrays.sort(sorted);
+		int unique = 0;
+		for (int i = 0; i < sorted.length; i++)
+		{
+			if (unique == 0 || sorted[i] != sorted[unique - 1])
+				sorted[unique++] = sorted[i];
+		}
+		final UIDSet[] sets = UIDSet.createUIDSets(Arrays.copyOf(sorted, unique));
+		IMAPFolder folder = (IMAPFolder) openFolder(Protocol.IMAP, folderName, Folder.READ_WRITE);
+		try
+		{
+			folder.doCommand(new IMAPFolder.ProtocolCommand() {
+				@Override
+				public Object doCommand(IMAPProtocol protocol) throws ProtocolException
+				{
+					for (int i = 0; i < sets.length; i += MAX_UID_RANGES)
+					{
+						UIDSet[] part = Arrays.copyOfRange(sets, i, Math.min(sets.length, i + MAX_UID_RANGES));
+						command.run(protocol, UIDSet.toString(part));
+					}
+					return null;
+				}
+			});
+		}
+		finally
+		{
+			closeFolder(folder);
+		}
+	}
+	
+	/**
+	 * Collects the attachments of a message. For IMAP messages this only reads the message structure.
+	 * @param part the message, or a part of it
+	 * @param attachments receives the attachments
+	 * @throws MessagingException if the structure could not be read
+	 * @throws IOException if the structure could not be read
+	 */
+	private static void findAttachments(Part part, List<Part> attachments) throws MessagingException, IOException
+	{
+		if (part.isMimeType("multipart/*"))
+		{
+			Multipart multipart = (Multipart) part.getContent();
+			for (int i = 0; i < multipart.getCount(); i++)
+				findAttachments(multipart.getBodyPart(i), attachments);
+		}
+		else if (part.getFileName() != null && !Part.INLINE.equalsIgnoreCase(part.getDisposition()))
+			attachments.add(part);
+	}
+	
+	/**
+	 * Converts a range of message numbers, where 0 means the first or last message, to the range 
+	 * available in the given folder
+	 * @param folder the open folder
+	 * @param start number of the first message
+	 * @param stop number of the last message
+	 * @return the first and last message numbers, or <em>null</em> if the range is empty
+	 * @throws MessagingException if the message count could not be read
+	 */
+	private static int[] range(Folder folder, int start, int stop) throws MessagingException
+	{
+		int count = folder.getMessageCount();
+		int first = Math.max(1, start);
+		int last = stop == 0 ? count : Math.min(stop, count);
+		if (first > last)
+			return null;
+		return new int[]{first, last};
+	}
+	
+	/**
+	 * Get the JavaMail protocol used for receiving mail with this configuration
+	 * @param protocol IMAP or POP3. If <em>null</em>, POP3 is used.
+	 * @return <em>imaps</em> on the standard implicit TLS port, otherwise <em>imap</em>. POP3 is always 
+	 * <em>pop3s</em>, since the bundled POP3 provider cannot upgrade a plain connection.
+	 */
+	private String getStoreProtocol(Protocol protocol)
+	{
+		if (protocol == Protocol.IMAP)
+			return config.imapPort == 993 ? "imaps" : "imap";
+		return "pop3s";
+	}
+	
+	/**
+	 * Builds the JavaMail properties for receiving mail with this configuration. POP3, and IMAP on port 
+	 * 993, use implicit TLS through {@link TLSSocketFactory}. IMAP on other ports must upgrade with 
+	 * STARTTLS: {@link TLSSocketFactory.StartTLS} refuses to send the login until the connection has 
+	 * been upgraded, so a server that does not offer STARTTLS cannot be used. IMAP bodies are fetched in 
+	 * blocks of {@link #FETCH_SIZE} bytes.
+	 * @param protocol IMAP or POP3
+	 * @return the properties
+	 */
+	private Properties getStoreProperties(Protocol protocol)
+	{
+		String name = getStoreProtocol(protocol);
+		String prefix = "mail." + name;
+		boolean implicitTLS = name.endsWith("s");
+		int port = protocol == Protocol.IMAP ? config.imapPort : config.popPort;
+		Properties props = new Properties(); 
+		props.put("mail.debug", String.valueOf(DEBUG));
+		props.put(prefix + ".connectiontimeout", String.valueOf(config.connection_timeout)); 
+		props.put(prefix + ".timeout", String.valueOf(config.read_timeout)); 
+		props.put(prefix + ".socketFactory.fallback", "false"); 
+		if (implicitTLS)
+		{
+			props.put(prefix + ".socketFactory.port", String.valueOf(port)); 
+			props.put(prefix + ".socketFactory.class", TLSSocketFactory.class.getName()); 
+		}
+		else
+		{
+			props.put(prefix + ".starttls.enable", "true"); 
+			props.put(prefix + ".socketFactory.class", TLSSocketFactory.StartTLS.class.getName()); 
+		}
+		if (protocol == Protocol.IMAP)
+		{
+			props.put(prefix + ".partialfetch", "true"); 
+			props.put(prefix + ".fetchsize", String.valueOf(FETCH_SIZE)); 
+			//keeps connections for folders opened in parallel, such as by FolderSync
+			props.put(prefix + ".connectionpoolsize", String.valueOf(STORE_POOL_SIZE)); 
+		}
+		return props;
+	}
+	
+	/**
+	 * Get a connected store for the given protocol. The store is kept connected and reused by later calls.
+	 * @param protocol IMAP or POP3. If <em>null</em>, POP3 is used.
+	 * @return the connected store
+	 * @throws MessagingException if the connection could not be made
+	 */
+	synchronized Store getStore(Protocol protocol) throws MessagingException
+	{
+		if (protocol == null)
+			protocol = Protocol.POP3;
+		Store store = stores.get(protocol);
+		if (store != null && store.isConnected())
+			return store;
+		String host = protocol == Protocol.IMAP ? config.imapServer : config.popServer;
+		int port = protocol == Protocol.IMAP ? config.imapPort : config.popPort;
+		if (host == null)
+			throw new MessagingException("No " + protocol + " server is configured");
+		Session session = Session.getInstance(getStoreProperties(protocol), this);
+		store = session.getStore(getStoreProtocol(protocol));
+		store.connect(host, port, config.getAddress(), password);
+		stores.put(protocol, store);
+		return store;
+	}
+	
+	/**
+	 * Opens a folder
+	 * @param protocol IMAP or POP3. If <em>null</em>, POP3 is used.
+	 * @param folderName the folder name, or <em>null</em> for the inbox
+	 * @param mode {@link Folder#READ_ONLY} or {@link Folder#READ_WRITE}
+	 * @return the open folder
+	 * @throws MessagingException if the folder could not be opened
+	 */
+	Folder openFolder(Protocol protocol, String folderName, int mode) throws MessagingException
+	{
+		Folder folder = getStore(protocol).getFolder(folderName == null ? "INBOX" : folderName);
+		folder.open(mode);
+		return folder;
+	}
+	
+	/**
+	 * Closes a folder without expunging it, logging any error
+	 * @param folder the folder
+	 */
+	static void closeFolder(Folder folder)
+	{
+		try
+		{
+			if (folder.isOpen())
+				folder.close(false);
+		}
+		catch (MessagingException e)
+		{
+			Platform.getInstance().warn(TAG, "Could not close folder " + folder.getFullName(), e);
+		}
+	}
+	
+	/**
+	 * Permanently deletes a set of messages
+	 */
+	private static final UidCommand DELETE = new UidCommand() {
+		@Override
+		void run(IMAPProtocol protocol, String set) throws ProtocolException
+		{
+			new StoreFlag("\\Deleted", true).run(protocol, set);
+			if (protocol.hasCapability("UIDPLUS"))
+				run(protocol, "UID EXPUNGE", set, null);
+			else
+				run(protocol, "EXPUNGE", null, null);
+		}
+	};
+	
+	/**
+	 * An IMAP command that acts on a set of messages given by UID
+	 */
+	private static abstract class UidCommand
+	{
+		/**
+		 * Runs the command
+		 * @param protocol the connection, with the folder selected
+		 * @param set the UIDs, as an IMAP sequence set
+		 * @throws ProtocolException if the server rejected the command
+		 */
+		abstract void run(IMAPProtocol protocol, String set) throws ProtocolException;
+		
+		/**
+		 * Sends a command, passes its untagged responses to the folder, and checks the result
+		 * @param protocol the connection
+		 * @param command the command name
+		 * @param set the sequence set argument, or <em>null</em>
+		 * @param more further arguments, or <em>null</em>
+		 * @throws ProtocolException if the server rejected the command
+		 */
+		static void run(IMAPProtocol protocol, String command, String set, Argument more) throws ProtocolException
+		{
+			Argument args = new Argument();
+			if (set != null)
+				args.writeAtom(set);
+			if (more != null)
+				args.append(more);
+			Response[] responses = protocol.command(command, args);
+			protocol.notifyResponseHandlers(responses);
+			protocol.handleResult(responses[responses.length - 1]);
+		}
+		
+		/**
+		 * Builds a mailbox name argument
+		 * @param name the folder name
+		 * @return the argument
+		 */
+		static Argument mailbox(String name)
+		{
+			Argument args = new Argument();
+			args.writeString(BASE64MailboxEncoder.encode(name));
+			return args;
+		}
+	}
+	
+	/**
+	 * Adds or removes a system flag, without asking the server to echo the new flags
+	 */
+	private static class StoreFlag extends UidCommand
+	{
+		/** the flag, such as <em>\Seen</em> */
+		private final String flag;
+		/** whether to add or remove the flag */
+		private final boolean set;
+		
+		/**
+		 * Constructor
+		 * @param flag the flag
+		 * @param set {@code true} to add the flag, {@code false} to remove it
+		 */
+		StoreFlag(String flag, boolean set)
+		{
+			this.flag = flag;
+			this.set = set;
+		}
+		
+		@Override
+		void run(IMAPProtocol protocol, String uids) throws ProtocolException
+		{
+			Argument args = new Argument();
+			args.writeAtom((set ? "+" : "-") + "FLAGS.SILENT");
+			args.writeAtom("(" + flag + ")");
+			run(protocol, "UID STORE", uids, args);
+		}
+	}
+	
+	/**
+	 * The text part of a message, located from its IMAP body structure
+	 */
+	private static class TextSection
+	{
+		/** the IMAP section specifier, such as <em>1.2</em> */
+		final String section;
+		/** the part's structure */
+		final BODYSTRUCTURE structure;
+		
+		/**
+		 * Constructor
+		 * @param section the section specifier
+		 * @param structure the part's structure
+		 */
+		TextSection(String section, BODYSTRUCTURE structure)
+		{
+			this.section = section;
+			this.structure = structure;
+		}
+		
+		/**
+		 * Finds the first text part with the given subtype that is not an attachment
+		 * @param structure the body structure to search
+		 * @param prefix the section specifier of {@code structure}, or an empty string for the message
+		 * @param subtype the text subtype, such as <em>plain</em> or <em>html</em>
+		 * @return the text section, or <em>null</em> if there is none
+		 */
+		static TextSection find(BODYSTRUCTURE structure, String prefix, String subtype)
+		{
+			if (structure.isMulti())
+			{
+				for (int i = 0; i < structure.bodies.length; i++)
+				{
+					String section = prefix.length() == 0 ? String.valueOf(i + 1) : prefix + "." + (i + 1);
+					TextSection text = find(structure.bodies[i], section, subtype);
+					if (text != null)
+						return text;
+				}
+				return null;
+			}
+			if (!"text".equalsIgnoreCase(structure.type) || !subtype.equalsIgnoreCase(structure.subtype)
+				|| Part.ATTACHMENT.equalsIgnoreCase(structure.disposition))
+				return null;
+			return new TextSection(prefix.length() == 0 ? "1" : prefix, structure);
+		}
+		
+		/**
+		 * Decodes text that may have been cut short. Incomplete base64 lines and quoted-printable escapes 
+		 * at the end of the data are dropped.
+		 * @param data the encoded text
+		 * @param offset the start of the text in {@code data}
+		 * @param length the length of the text
+		 * @return the decoded text
+		 * @throws MessagingException if the text could not be decoded
+		 * @throws IOException if the text could not be decoded
+		 */
+		String decode(byte[] data, int offset, int length) throws MessagingException, IOException
+		{
+			String encoding = structure.encoding == null ? "7bit" : structure.encoding.toLowerCase(Locale.US);
+			boolean truncated = structure.size > length;
+			if (truncated && encoding.equals("base64"))
+			{
+				int end = length;
+				while (end > 0 && data[offset + end - 1] != '\n')
+					end--;
+				length = end;
+			}
+			else if (truncated && encoding.equals("quoted-printable"))
+			{
+				for (int i = Math.max(0, length - 2); i < length; i++)
+				{
+					if (data[offset + i] == '=')
+					{
+						length = i;
+						break;
+					}
+				}
+			}
+			InputStream in = MimeUtility.decode(new ByteArrayInputStream(data, offset, length), encoding);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+			
+			String charset = structure.cParams == null ? null : structure.cParams.get("charset");
+			String text;
+			try
+			{
+				text = out.toString(charset == null ? "UTF-8" : MimeUtility.javaCharset(charset));
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				text = out.toString("UTF-8");
+			}
+			//drop a multi-byte character that was cut in half
+			if (truncated && text.endsWith("\uFFFD"))
+				text = text.substring(0, text.length() - 1);
+			return text;
 		}
 	}
 	
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+/**
+ * Iterates over the messages in a folder in fixed-size chunks, so that a mailbox of any size can be
+ * processed in constant memory. The envelopes of each chunk are fetched in a single request. JavaMail
+ * keeps everything it downloads for as long as a folder is open, so the folder is closed and opened
+ * again every {@link #REOPEN_INTERVAL} messages, which releases the messages already processed.<p>
+ * A message can be used until the folder is reopened. Read what is needed from each message before
+ * moving far past it, or use {@link MessageSummary}. Call {@link #close()} to stop early; the folder is
+ * closed automatically once the last message has been returned. Iterating makes network requests, so it
+ * must not be done on the main thread. Since {@link Iterator} methods cannot throw checked exceptions,
+ * errors are thrown as {@link IllegalStateException}s that wrap the {@link MessagingException}.
+ * @author Phil Brown
+ * @see Mailer#iterateMessages(Mailer.Protocol, String, int)
+ */
+public class MessageIterator implements Iterator<Message>, Closeable
+{
+	/** Default number of messages fetched at once */
+	public static final int DEFAULT_CHUNK_SIZE = 100;
+
+	/** The folder is reopened after this many messages, to release them */
+	public static final int REOPEN_INTERVAL = 1000;
+
+	/** Opens the folder */
+	private final Mailer mailer;
+
+	/** The protocol */
+	private final Mailer.Protocol protocol;
+
+	/** The folder name, or <em>null</em> for the inbox */
+	private final String folderName;
+
+	/** Number of messages fetched at once */
+	private final int chunkSize;
+
+	/** The open folder, or <em>null</em> once closed */
+	private Folder folder;
+
+	/** The current chunk */
+	private Message[] chunk = new Message[0];
+
+	/** Index of the next message in {@link #chunk} */
+	private int index;
+
+	/** Number of the next message to fetch */
+	private int nextNumber = 1;
+
+	/** UID of the last message returned, or -1 */
+	private long lastUid = -1;
+
+	/** Messages returned since the folder was last opened */
+	private int sinceOpen;
+
+	/** whether or not {@link #close()} has been called, or the end was reached */
+	private boolean closed;
+
+	/**
+	 * Constructor
+	 * @param mailer opens the folder
+	 * @param protocol IMAP or POP3
+	 * @param folderName the folder name, or <em>null</em> for the inbox
+	 * @param chunkSize number of messages fetched at once
+	 */
+	MessageIterator(Mailer mailer, Mailer.Protocol protocol, String folderName, int chunkSize)
+	{
+		this.mailer = mailer;
+		this.protocol = protocol;
+		this.folderName = folderName;
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if (closed)
+			return false;
+		if (index < chunk.length)
+			return true;
+		try
+		{
+			loadChunk();
+		}
+		catch (MessagingException e)
+		{
+			close();
+			throw new IllegalStateException("Could not fetch messages", e);
+		}
+		if (index < chunk.length)
+			return true;
+		close();
+		return false;
+	}
+
+	@Override
+	public Message next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Message message = chunk[index];
+		chunk[index++] = null;
+		sinceOpen++;
+		if (folder instanceof UIDFolder)
+		{
+			try
+			{
+				lastUid = ((UIDFolder) folder).getUID(message);
+			}
+			catch (MessagingException e)
+			{
+				lastUid = -1;
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Not supported. Use {@link Mailer#deleteMessages(String, long[])} to delete many messages at once.
+	 */
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops iterating and closes the folder. Safe to call more than once.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		chunk = new Message[0];
+		if (folder != null)
+		{
+			Mailer.closeFolder(folder);
+			folder = null;
+		}
+	}
+
+	/**
+	 * Fetches the next chunk of messages, opening or reopening the folder as needed
+	 * @throws MessagingException if the messages could not be fetched
+	 */
+	private void loadChunk() throws MessagingException
+	{
+		chunk = new Message[0];
+		index = 0;
+		if (folder != null && sinceOpen >= REOPEN_INTERVAL)
+		{
+			Mailer.closeFolder(folder);
+			folder = null;
+		}
+		if (folder == null)
+		{
+			folder = mailer.openFolder(protocol, folderName, Folder.READ_ONLY);
+			sinceOpen = 0;
+			if (lastUid >= 0 && folder instanceof UIDFolder)
+			{
+				//other clients may have deleted messages while the folder was closed, including the last one returned
+				nextNumber = firstAfter((UIDFolder) folder, lastUid);
+			}
+		}
+		int count = folder.getMessageCount();
+		if (nextNumber > count)
+			return;
+		int last = Math.min(count, nextNumber + chunkSize - 1);
+		Message[] messages = folder.getMessages(nextNumber, last);
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.FLAGS);
+		if (folder instanceof UIDFolder)
+			profile.add(UIDFolder.FetchProfileItem.UID);
+		folder.fetch(messages, profile);
+		chunk = messages;
+		nextNumber = last + 1;
+	}
+
+	/**
+	 * Finds where to resume after the folder has been reopened. Message numbers change when earlier
+	 * messages are deleted, but UIDs do not, so the first message with a larger UID is looked up.
+	 * @param folder the open folder
+	 * @param uid the UID of the last message returned
+	 * @return the number of the first message after {@code uid}, or one more than the message count if there is none
+	 * @throws MessagingException if the UIDs could not be fetched
+	 */
+	private static int firstAfter(UIDFolder folder, long uid) throws MessagingException
+	{
+		int first = ((Folder) folder).getMessageCount() + 1;
+		for (Message message : folder.getMessagesByUID(uid + 1, UIDFolder.LASTUID))
+		{
+			//a range ending at the last UID still includes the last message, even if its UID is smaller
+			if (message != null && folder.getUID(message) > uid)
+				first = Math.min(first, message.getMessageNumber());
+		}
+		return first;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.Date;
+import java.util.Locale;
+
+import javax.mail.Address;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+/**
+ * The envelope of a received message: who sent it, to whom, when, and how large it is. A summary
+ * holds no body content and no reference to the server connection, so large numbers of them can be
+ * kept cheaply.
+ * @author Phil Brown
+ * @see Mailer#getHeaders(Mailer.Protocol, String, int, int)
+ */
+public class MessageSummary
+{
+	/** the message number in its folder. Numbers change when messages are expunged. */
+	public final int number;
+	/** the IMAP UID, which does not change, or -1 for POP3 */
+	public final long uid;
+	/** the sender */
+	public final String from;
+	/** the recipients */
+	public final String[] to;
+	/** the subject */
+	public final String subject;
+	/** when the message was sent */
+	public final Date sentDate;
+	/** when the message was received, if known */
+	public final Date receivedDate;
+	/** the size of the message, in bytes, or -1 if unknown */
+	public final int size;
+	/** whether or not the message has been read */
+	public final boolean seen;
+	/** whether or not the message is flagged */
+	public final boolean flagged;
+	/** whether or not the message is {@code multipart/mixed}, and so probably has attachments */
+	public final boolean hasAttachments;
+
+	/**
+	 * Constructor. Reads the summary from a message whose envelope has already been fetched.
+	 * @param folder the folder containing the message
+	 * @param message the message
+	 * @throws MessagingException if the envelope could not be read
+	 */
+	MessageSummary(Folder folder, Message message) throws MessagingException
+	{
+		number = message.getMessageNumber();
+		uid = folder instanceof UIDFolder ? ((UIDFolder) folder).getUID(message) : -1;
+		Address[] senders = message.getFrom();
+		from = senders == null || senders.length == 0 ? null : senders[0].toString();
+		Address[] recipients = message.getRecipients(Message.RecipientType.TO);
+		if (recipients == null)
+			to = new String[0];
+		else
+		{
+			to = new String[recipients.length];
+			for (int i = 0; i < recipients.length; i++)
+				to[i] = recipients[i].toString();
+		}
+		subject = message.getSubject();
+		sentDate = message.getSentDate();
+		receivedDate = message.getReceivedDate();
+		size = message.getSize();
+		Flags flags = message.getFlags();
+		seen = flags.contains(Flags.Flag.SEEN);
+		flagged = flags.contains(Flags.Flag.FLAGGED);
+		String type = message.getContentType();
+		hasAttachments = type != null && type.toLowerCase(Locale.US).startsWith("multipart/mixed");
+	}
+
+	@Override
+	public String toString()
+	{
+		return "#" + number + (uid < 0 ? "" : " (uid " + uid + ")") + " from " + from + ": " + subject;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The services droidMail needs from the platform it runs on: logging, threads, and a place to
+ * deliver {@link Mailer.MailListener} callbacks. The sending and receiving engine uses only this
+ * class, so it runs on a plain JVM (for example in a server, or in unit tests) as well as on Android.<p>
+ * On Android, {@link #getInstance()} returns an adapter that logs with {@code android.util.Log} and
+ * calls listeners on the main thread. Elsewhere, this default implementation is used: messages are
+ * logged with {@code java.util.logging}, listeners are called on the thread that sent the message, and
+ * background work runs on virtual threads when the JVM supports them. Applications can replace the
+ * platform with {@link #setInstance(Platform)}, for example to use their own executors.
+ * @author Phil Brown
+ */
+public class Platform
+{
+	/** The platform in use. Detected on first use. */
+	private static Platform instance;
+
+	/** Creates virtual threads, or <em>null</em> if they are not supported. Looked up once. */
+	private static Object virtualThreads;
+
+	/** whether or not {@link #virtualThreads} has been looked up */
+	private static boolean virtualThreadsChecked;
+
+	/**
+	 * Get the platform in use
+	 * @return the Android adapter when running on Android, otherwise the default platform
+	 */
+	public static synchronized Platform getInstance()
+	{
+		if (instance == null)
+			instance = "Dalvik".equals(System.getProperty("java.vm.name")) ? new AndroidPlatform() : new Platform();
+		return instance;
+	}
+
+	/**
+	 * Replaces the platform. Should be called before any {@link Mailer} is used.
+	 * @param platform the platform, or <em>null</em> to detect it again
+	 */
+	public static synchronized void setInstance(Platform platform)
+	{
+		instance = platform;
+	}
+
+	/**
+	 * Logs a debug message. Only called when debug mode is enabled.
+	 * @param tag the source of the message
+	 * @param message the message
+	 * @param t the related error, or <em>null</em>
+	 */
+	public void debug(String tag, String message, Throwable t)
+	{
+		Logger.getLogger(tag).log(Level.FINE, message, t);
+	}
+
+	/**
+	 * Logs a warning
+	 * @param tag the source of the message
+	 * @param message the message
+	 * @param t the related error, or <em>null</em>
+	 */
+	public void warn(String tag, String message, Throwable t)
+	{
+		Logger.getLogger(tag).log(Level.WARNING, message, t);
+	}
+
+	/**
+	 * Runs a listener callback. By default the callback runs immediately, on the calling thread.
+	 * @param callback the callback
+	 */
+	public void post(Runnable callback)
+	{
+		callback.run();
+	}
+
+	/**
+	 * Creates the factory for the background threads that send messages and synchronize folders.
+	 * Uses virtual threads if the JVM supports them, otherwise daemon threads.
+	 * @param name the thread name prefix. Threads are named <em>name-1</em>, <em>name-2</em>, and so on.
+	 * @return the thread factory
+	 */
+	public ThreadFactory newThreadFactory(String name)
+	{
+		ThreadFactory factory = newVirtualThreadFactory(name);
+		return factory != null ? factory : newDaemonThreadFactory(name);
+	}
+
+	/**
+	 * Creates a factory for daemon platform threads
+	 * @param name the thread name prefix
+	 * @return the thread factory
+	 */
+	protected static ThreadFactory newDaemonThreadFactory(final String name)
+	{
+		return new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, name + "-" + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Creates a factory for virtual threads, which are available from Java 21. The API is called
+	 * reflectively, so that droidMail can still be built for older platforms.
+	 * @param name the thread name prefix
+	 * @return the thread factory, or <em>null</em> if virtual threads are not supported
+	 */
+	protected static ThreadFactory newVirtualThreadFactory(String name)
+	{
+		synchronized (Platform.class)
+		{
+			if (!virtualThreadsChecked)
+			{
+				virtualThreadsChecked = true;
+				try
+				{
+					virtualThreads = Thread.class.getMethod("ofVirtual").invoke(null);
+				}
+				catch (Exception e)
+				{
+					//not supported
+				}
+			}
+			if (virtualThreads == null)
+				return null;
+		}
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object named = builder.getMethod("name", String.class, long.class).invoke(virtualThreads, name + "-", 1L);
+			return (ThreadFactory) builder.getMethod("factory").invoke(named);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+}
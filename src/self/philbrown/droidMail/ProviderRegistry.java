@@ -0,0 +1,584 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+import self.philbrown.droidMail.MailConfiguration.Provider;
+
+/**
+ * Resolves {@link MailConfiguration} server settings for arbitrary email domains.<p>
+ * Lookups are answered, in order, from a TTL cache of previous results, the bundled provider
+ * database ({@code providers.xml}, in Thunderbird autoconfig format), any local autoconfig
+ * directories added with {@link #addAutoconfigDirectory(File)}, and - only if enabled with
+ * {@link #setRemoteAutoconfigEnabled(boolean)} - the domain's own autoconfig server. Both found
+ * and missing domains are cached, so onboarding or reconnecting many accounts on the same domain
+ * only pays for the lookup once per TTL. Since remote lookups perform network I/O, they should not
+ * be done on the UI thread.
+ * @author Phil Brown
+ */
+public class ProviderRegistry
+{
+	/** logging tag */
+	public static final String TAG = "ProviderRegistry";
+
+	/** Default time, in milliseconds, that a resolved configuration is cached. One day. */
+	public static final long DEFAULT_TTL = 24*60*60*1000L;
+
+	/** Maximum number of domains kept in the lookup cache */
+	private static final int MAX_CACHE_SIZE = 512;
+
+	/** Timeout, in milliseconds, for remote autoconfig requests */
+	private static final int AUTOCONFIG_TIMEOUT = 10000;
+
+	/** Name of the bundled provider database resource */
+	private static final String BUNDLED_DATABASE = "providers.xml";
+
+	/** Shared instance */
+	private static ProviderRegistry instance;
+
+	/** Server settings loaded from provider databases, keyed by lower-case domain */
+	private Map<String, MailConfiguration> database = new HashMap<String, MailConfiguration>();
+
+	/** Previously resolved lookups (including misses), keyed by lower-case domain */
+	private Map<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+		{
+			return size() > MAX_CACHE_SIZE;
+		}
+	};
+
+	/** Local directories containing {@code <domain>.xml} autoconfig files */
+	private File[] autoconfigDirectories = new File[0];
+
+	/** Time to keep cached lookups, in milliseconds */
+	private long ttl = DEFAULT_TTL;
+
+	/** whether or not to query the domain's autoconfig server */
+	private boolean remoteAutoconfig = false;
+
+	/**
+	 * Constructor. Loads the bundled provider database.
+	 */
+	public ProviderRegistry()
+	{
+		InputStream in = ProviderRegistry.class.getResourceAsStream(BUNDLED_DATABASE);
+		if (in != null)
+		{
+			try
+			{
+				load(in);
+			}
+			catch (IOException e)
+			{
+				Platform.getInstance().warn(TAG, "Could not load " + BUNDLED_DATABASE, e);
+			}
+			finally
+			{
+				closeQuietly(in);
+			}
+		}
+	}
+
+	/**
+	 * Get the shared registry
+	 * @return the shared {@code ProviderRegistry}
+	 */
+	public static synchronized ProviderRegistry getInstance()
+	{
+		if (instance == null)
+			instance = new ProviderRegistry();
+		return instance;
+	}
+
+	/**
+	 * Adds all providers in the given autoconfig XML document to this registry's database.
+	 * Later entries replace earlier entries for the same domain.
+	 * @param in stream containing a {@code clientConfig} document
+	 * @throws IOException if the document could not be read or parsed
+	 */
+	public void load(InputStream in) throws IOException
+	{
+		Map<String, MailConfiguration> parsed = parse(in);
+		synchronized (this)
+		{
+			database.putAll(parsed);
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Registers, or replaces, the server settings for the given domain
+	 * @param domain the email domain, such as <em>example.com</em>
+	 * @param conf server settings for the domain. Credentials are ignored.
+	 */
+	public synchronized void register(String domain, MailConfiguration conf)
+	{
+		if (domain == null || conf == null)
+			throw new NullPointerException("Invalid parameters");
+		MailConfiguration settings = new MailConfiguration();
+		settings.setServerSettings(conf);
+		String key = domain.toLowerCase(Locale.US);
+		database.put(key, settings);
+		cache.remove(key);
+	}
+
+	/**
+	 * Adds a local directory to search for {@code <domain>.xml} autoconfig files, such as a copy
+	 * of the Thunderbird ISPDB.
+	 * @param directory the directory to search
+	 */
+	public synchronized void addAutoconfigDirectory(File directory)
+	{
+		File[] dirs = new File[autoconfigDirectories.length + 1];
+		System.arraycopy(autoconfigDirectories, 0, dirs, 0, autoconfigDirectories.length);
+		dirs[autoconfigDirectories.length] = directory;
+		autoconfigDirectories = dirs;
+		cache.clear();
+	}
+
+	/**
+	 * Sets whether or not domains that are not found locally should be looked up on the domain's
+	 * autoconfig server. Disabled by default.
+	 * @param enabled {@code true} to enable remote lookups
+	 */
+	public synchronized void setRemoteAutoconfigEnabled(boolean enabled)
+	{
+		remoteAutoconfig = enabled;
+		cache.clear();
+	}
+
+	/**
+	 * Sets how long resolved lookups are cached
+	 * @param millis the time to live, in milliseconds
+	 */
+	public synchronized void setCacheTTL(long millis)
+	{
+		ttl = millis;
+	}
+
+	/**
+	 * Removes all cached lookups
+	 */
+	public synchronized void clearCache()
+	{
+		cache.clear();
+	}
+
+	/**
+	 * Get the server settings for one of the common {@link Provider Providers}
+	 * @param provider the provider
+	 * @return a new {@code MailConfiguration} containing the server settings, or <em>null</em> if none are known
+	 */
+	public MailConfiguration lookup(Provider provider)
+	{
+		MailConfiguration conf = lookup(provider.name() + ".com");
+		if (conf == null && MailConfiguration.commonProviders.containsKey(provider))
+		{
+			conf = new MailConfiguration();
+			conf.setServerSettings(MailConfiguration.commonProviders.get(provider));
+		}
+		return conf;
+	}
+
+	/**
+	 * Get the server settings for the given email address or domain
+	 * @param address an email address, such as <em>john.doe@example.com</em>, or just its domain
+	 * @return a new {@code MailConfiguration} containing the server settings, or <em>null</em> if
+	 * the domain could not be resolved
+	 */
+	public MailConfiguration lookup(String address)
+	{
+		if (address == null)
+			return null;
+		String domain = address.substring(address.lastIndexOf('@') + 1).trim().toLowerCase(Locale.US);
+		if (domain.length() == 0)
+			return null;
+
+		MailConfiguration settings;
+		long now = System.currentTimeMillis();
+		synchronized (this)
+		{
+			CacheEntry entry = cache.get(domain);
+			if (entry != null && entry.expires > now)
+			{
+				return copy(entry.settings);
+			}
+			settings = database.get(domain);
+		}
+
+		if (settings == null)
+		{
+			settings = resolve(domain, address.indexOf('@') > 0 ? address : null);
+		}
+
+		synchronized (this)
+		{
+			cache.put(domain, new CacheEntry(settings, now + ttl));
+		}
+		return copy(settings);
+	}
+
+	/**
+	 * Looks up the given domain in the local autoconfig directories and, if enabled, on the
+	 * domain's autoconfig server
+	 * @param domain the lower-case domain
+	 * @param address the full email address, if known. Some autoconfig servers tailor their response to it.
+	 * @return the settings, or <em>null</em> if the domain could not be resolved
+	 */
+	private MailConfiguration resolve(String domain, String address)
+	{
+		File[] dirs;
+		boolean remote;
+		synchronized (this)
+		{
+			dirs = autoconfigDirectories;
+			remote = remoteAutoconfig;
+		}
+
+		for (File dir : dirs)
+		{
+			File file = new File(dir, domain + ".xml");
+			if (!file.isFile())
+				continue;
+			InputStream in = null;
+			try
+			{
+				in = new FileInputStream(file);
+				MailConfiguration conf = parse(in).get(domain);
+				if (conf != null)
+					return conf;
+			}
+			catch (IOException e)
+			{
+				Platform.getInstance().warn(TAG, "Could not read " + file, e);
+			}
+			finally
+			{
+				closeQuietly(in);
+			}
+		}
+
+		if (remote)
+		{
+			String query = "";
+			if (address != null)
+			{
+				try
+				{
+					query = "?emailaddress=" + URLEncoder.encode(address, "UTF-8");
+				}
+				catch (IOException e)
+				{
+					//UTF-8 is always supported
+				}
+			}
+			String[] urls = new String[] {
+				"https://autoconfig." + domain + "/mail/config-v1.1.xml" + query,
+				"https://" + domain + "/.well-known/autoconfig/mail/config-v1.1.xml"
+			};
+			for (String url : urls)
+			{
+				HttpURLConnection connection = null;
+				InputStream in = null;
+				try
+				{
+					connection = (HttpURLConnection) new URL(url).openConnection();
+					connection.setConnectTimeout(AUTOCONFIG_TIMEOUT);
+					connection.setReadTimeout(AUTOCONFIG_TIMEOUT);
+					if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+						continue;
+					in = connection.getInputStream();
+					Map<String, MailConfiguration> parsed = parse(in);
+					MailConfiguration conf = parsed.get(domain);
+					if (conf == null && !parsed.isEmpty())
+					{
+						//the server answered for this domain, even if it did not list it.
+						conf = parsed.values().iterator().next();
+					}
+					if (conf != null)
+						return conf;
+				}
+				catch (IOException e)
+				{
+					//no autoconfig at this location
+				}
+				finally
+				{
+					closeQuietly(in);
+					if (connection != null)
+						connection.disconnect();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a parser that is safe for documents from untrusted servers. Document type declarations 
+	 * are refused, so neither external entities nor entity expansion can be used against the device. 
+	 * Parsers that do not support a feature (such as older Android parsers) still never resolve 
+	 * external entities, since every lookup is answered with an empty document.
+	 * @return the parser
+	 * @throws ParserConfigurationException if no parser could be created
+	 */
+	private static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException
+	{
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setExpandEntityReferences(false);
+		setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		setFeature(factory, "http://apache.org/xml/features/disallow-doctype-decl", true);
+		setFeature(factory, "http://xml.org/sax/features/external-general-entities", false);
+		setFeature(factory, "http://xml.org/sax/features/external-parameter-entities", false);
+		DocumentBuilder builder = factory.newDocumentBuilder();
+		builder.setEntityResolver(new EntityResolver() {
+			@Override
+			public InputSource resolveEntity(String publicId, String systemId)
+			{
+				return new InputSource(new StringReader(""));
+			}
+		});
+		return builder;
+	}
+
+	/**
+	 * Sets a parser feature, if the parser supports it
+	 * @param factory the parser factory
+	 * @param feature the feature name
+	 * @param value the feature value
+	 */
+	private static void setFeature(DocumentBuilderFactory factory, String feature, boolean value)
+	{
+		try
+		{
+			factory.setFeature(feature, value);
+		}
+		catch (ParserConfigurationException e)
+		{
+			Platform.getInstance().debug(TAG, "XML parser does not support " + feature, null);
+		}
+	}
+
+	/**
+	 * Parses a Thunderbird autoconfig {@code clientConfig} document
+	 * @param in the document
+	 * @return the server settings for each domain listed in the document
+	 * @throws IOException if the document could not be read or parsed
+	 */
+	private static Map<String, MailConfiguration> parse(InputStream in) throws IOException
+	{
+		Document document;
+		try
+		{
+			DocumentBuilder builder = newDocumentBuilder();
+			document = builder.parse(in);
+		}
+		catch (IOException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			IOException ioe = new IOException("Invalid autoconfig document");
+			ioe.initCause(e);
+			throw ioe;
+		}
+
+		Map<String, MailConfiguration> providers = new HashMap<String, MailConfiguration>();
+		NodeList emailProviders = document.getElementsByTagName("emailProvider");
+		for (int i = 0; i < emailProviders.getLength(); i++)
+		{
+			Element provider = (Element) emailProviders.item(i);
+			MailConfiguration conf = new MailConfiguration();
+			boolean hasImap = false, hasPop = false, hasSmtp = false;
+
+			for (Node node = provider.getFirstChild(); node != null; node = node.getNextSibling())
+			{
+				if (!(node instanceof Element))
+					continue;
+				Element server = (Element) node;
+				String name = server.getTagName();
+				String type = server.getAttribute("type");
+				String host = childText(server, "hostname");
+				int port = parsePort(childText(server, "port"));
+				String socketType = childText(server, "socketType");
+				boolean ssl = "SSL".equalsIgnoreCase(socketType);
+				boolean starttls = "STARTTLS".equalsIgnoreCase(socketType);
+				boolean plain = "plain".equalsIgnoreCase(socketType);
+				boolean auth = !"none".equalsIgnoreCase(childText(server, "authentication"));
+
+				if (name.equals("incomingServer") && type.equals("imap") && !hasImap)
+				{
+					conf.imapServer = host;
+					conf.imapPort = port;
+					conf.imapAuth = auth;
+					hasImap = true;
+				}
+				else if (name.equals("incomingServer") && type.equals("pop3") && !hasPop)
+				{
+					conf.popServer = host;
+					conf.popPort = port;
+					conf.popAuth = auth;
+					hasPop = true;
+				}
+				else if (name.equals("outgoingServer") && type.equals("smtp") && !hasSmtp)
+				{
+					conf.host_smtp_server = host;
+					conf.smtp_port = port;
+					conf.smtp_auth = auth;
+					if (ssl)
+						conf.socket_port = port;
+					conf.smtp_starttls = starttls;
+					//an unencrypted server is reached on its advertised port, without SSL
+					conf.smtp_plain = plain;
+					hasSmtp = true;
+				}
+				else if (name.equals("outgoingServer") && type.equals("smtp") && host.length() > 0
+					     && conf.smtp_starttls == starttls && conf.smtp_plain == plain
+					     && port == (conf.smtp_starttls || conf.smtp_plain ? conf.smtp_port : conf.socket_port)
+					     && !host.equalsIgnoreCase(conf.host_smtp_server))
+				{
+					//another server reachable the same way can share the load
+					conf.alternate_smtp_servers = conf.alternate_smtp_servers.length() == 0 ? host : conf.alternate_smtp_servers + "," + host;
+				}
+			}
+
+			if (!hasSmtp && !hasImap && !hasPop)
+				continue;
+
+			NodeList domains = provider.getElementsByTagName("domain");
+			for (int j = 0; j < domains.getLength(); j++)
+			{
+				String domain = domains.item(j).getTextContent().trim().toLowerCase(Locale.US);
+				if (domain.length() > 0)
+					providers.put(domain, conf);
+			}
+		}
+		return providers;
+	}
+
+	/**
+	 * Get the trimmed text of the first child element with the given name
+	 * @param parent the parent element
+	 * @param name the child element's tag name
+	 * @return the text, or an empty String if there is no such child
+	 */
+	private static String childText(Element parent, String name)
+	{
+		NodeList children = parent.getElementsByTagName(name);
+		if (children.getLength() == 0)
+			return "";
+		return children.item(0).getTextContent().trim();
+	}
+
+	/**
+	 * Parses an autoconfig port
+	 * @param port the port String
+	 * @return the port, or 0 if it is not a number
+	 */
+	private static int parsePort(String port)
+	{
+		try
+		{
+			return Integer.parseInt(port);
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Copies the given server settings, so that callers cannot modify cached values
+	 * @param settings the settings to copy. May be <em>null</em>.
+	 * @return the copy, or <em>null</em> if {@code settings} is <em>null</em>
+	 */
+	private static MailConfiguration copy(MailConfiguration settings)
+	{
+		if (settings == null)
+			return null;
+		MailConfiguration conf = new MailConfiguration();
+		conf.setServerSettings(settings);
+		return conf;
+	}
+
+	/**
+	 * Closes the given stream, ignoring any errors
+	 * @param in the stream to close. May be <em>null</em>.
+	 */
+	private static void closeQuietly(InputStream in)
+	{
+		if (in == null)
+			return;
+		try
+		{
+			in.close();
+		}
+		catch (IOException e)
+		{
+			//ignore
+		}
+	}
+
+	/**
+	 * A cached lookup result
+	 */
+	private static class CacheEntry
+	{
+		/** The resolved settings, or <em>null</em> if the domain could not be resolved */
+		final MailConfiguration settings;
+		/** Time, in milliseconds, at which this entry expires */
+		final long expires;
+
+		/**
+		 * Constructor
+		 * @param settings the resolved settings
+		 * @param expires expiry time, in milliseconds
+		 */
+		CacheEntry(MailConfiguration settings, long expires)
+		{
+			this.settings = settings;
+			this.expires = expires;
+		}
+	}
+}
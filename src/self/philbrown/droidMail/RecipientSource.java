@@ -0,0 +1,298 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Supplies the recipients of a large mailing one at a time, so that the whole list never has to be
+ * held in memory. A {@link Mailer} reads a chunk of recipients, sends the message to them, and only
+ * then reads the next chunk.
+ * @author Phil Brown
+ * @see Mailer#send(MailMessage, RecipientSource, int)
+ */
+public abstract class RecipientSource implements Closeable
+{
+	/** logging tag */
+	public static final String TAG = "RecipientSource";
+
+	/** Longest address, in characters, read from a file or string. Longer entries are skipped. */
+	public static final int MAX_LENGTH = 1024;
+
+	/**
+	 * Get the next recipient
+	 * @return the address, or <em>null</em> once every recipient has been read
+	 * @throws IOException if the recipient could not be read
+	 */
+	public abstract String next() throws IOException;
+
+	/**
+	 * Releases any file or other resource held by this source. Does nothing by default.
+	 * @throws IOException if the resource could not be released
+	 */
+	@Override
+	public void close() throws IOException
+	{
+	}
+
+	/**
+	 * Describes this source in the {@link DeliveryJournal}
+	 * @return the file path for a file source, otherwise <em>recipient list</em>
+	 */
+	@Override
+	public String toString()
+	{
+		return "recipient list";
+	}
+
+	/**
+	 * Reads the next chunk of recipients
+	 * @param max the largest number of recipients to read
+	 * @return the recipients. Empty once every recipient has been read.
+	 * @throws IOException if the recipients could not be read
+	 */
+	String[] next(int max) throws IOException
+	{
+		List<String> chunk = new ArrayList<String>(Math.min(max, 256));
+		String address;
+		while (chunk.size() < max && (address = next()) != null)
+			chunk.add(address);
+		return chunk.toArray(new String[chunk.size()]);
+	}
+
+	/**
+	 * Creates a source that reads recipients from an iterator, such as a database cursor wrapper
+	 * @param recipients the addresses. <em>null</em> elements are skipped.
+	 * @return the source
+	 */
+	public static RecipientSource of(final Iterator<String> recipients)
+	{
+		return new RecipientSource() {
+			@Override
+			public String next()
+			{
+				while (recipients.hasNext())
+				{
+					String address = recipients.next();
+					if (address != null)
+						return address;
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Creates a source that reads recipients from a comma- or line-separated string, without splitting 
+	 * it into an array first
+	 * @param recipients the addresses. Commas inside double quotes, as in display names, do not separate addresses.
+	 * @return the source
+	 */
+	public static RecipientSource of(final CharSequence recipients)
+	{
+		return new Delimited() {
+			/** index of the next character */
+			private int index;
+
+			@Override
+			int read()
+			{
+				return index < recipients.length() ? recipients.charAt(index++) : -1;
+			}
+		};
+	}
+
+	/**
+	 * Creates a source that reads recipients from a UTF-8 text file with one address per line (commas 
+	 * also separate addresses). The file is read through a small buffer, so it can be of any size. The 
+	 * file is opened immediately, and closed by {@link #close()} or once the last recipient has been read.
+	 * @param file the file
+	 * @return the source
+	 * @throws IOException if the file could not be opened
+	 */
+	public static RecipientSource fromFile(File file) throws IOException
+	{
+		return new FileSource(file);
+	}
+
+	/**
+	 * Splits a stream of characters into addresses
+	 */
+	private static abstract class Delimited extends RecipientSource
+	{
+		/** the address being read */
+		private final StringBuilder token = new StringBuilder();
+
+		/**
+		 * Reads the next character
+		 * @return the character, or -1 at the end
+		 * @throws IOException if the character could not be read
+		 */
+		abstract int read() throws IOException;
+
+		@Override
+		public String next() throws IOException
+		{
+			while (true)
+			{
+				token.setLength(0);
+				boolean quoted = false;
+				boolean overlong = false;
+				int c;
+				while ((c = read()) != -1)
+				{
+					if (c == '"')
+						quoted = !quoted;
+					else if (c == '\n' || c == '\r')
+						quoted = false;
+					if (!quoted && (c == ',' || c == '\n' || c == '\r'))
+						break;
+					if (token.length() < MAX_LENGTH)
+						token.append((char) c);
+					else
+						overlong = true;
+				}
+				if (overlong)
+				{
+					Platform.getInstance().warn(TAG, "Skipping recipient longer than " + MAX_LENGTH + " characters", null);
+					continue;
+				}
+				String address = trim(token);
+				if (address != null)
+					return address;
+				if (c == -1)
+				{
+					close();
+					return null;
+				}
+			}
+		}
+
+		/**
+		 * Trims white space, including a byte order mark, from both ends of the given token
+		 * @param token the token
+		 * @return the trimmed token, or <em>null</em> if it is empty
+		 */
+		private static String trim(StringBuilder token)
+		{
+			int start = 0;
+			int end = token.length();
+			while (start < end && (token.charAt(start) <= ' ' || token.charAt(start) == '\uFEFF'))
+				start++;
+			while (end > start && token.charAt(end - 1) <= ' ')
+				end--;
+			return start == end ? null : token.substring(start, end);
+		}
+	}
+
+	/**
+	 * Reads recipients from a file through a {@link FileChannel}
+	 */
+	private static class FileSource extends Delimited
+	{
+		/** Size of the read buffer, in bytes */
+		private static final int BUFFER_SIZE = 16*1024;
+
+		/** the file */
+		private final File file;
+
+		/** reads {@link #file} */
+		private final FileInputStream in;
+
+		/** the open channel */
+		private final FileChannel channel;
+
+		/** bytes read but not yet decoded */
+		private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+		/** decoded characters not yet read */
+		private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+		/** decodes UTF-8, replacing malformed input */
+		private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		/** whether or not the end of the file has been reached */
+		private boolean eof;
+
+		/**
+		 * Constructor
+		 * @param file the file
+		 * @throws IOException if the file could not be opened
+		 */
+		FileSource(File file) throws IOException
+		{
+			this.file = file;
+			in = new FileInputStream(file);
+			channel = in.getChannel();
+			chars.flip();
+		}
+
+		@Override
+		int read() throws IOException
+		{
+			while (!chars.hasRemaining())
+			{
+				if (eof)
+					return -1;
+				chars.clear();
+				if (channel.read(bytes) < 0)
+				{
+					eof = true;
+					bytes.flip();
+					decoder.decode(bytes, chars, true);
+					decoder.flush(chars);
+				}
+				else
+				{
+					bytes.flip();
+					decoder.decode(bytes, chars, false);
+					bytes.compact();
+				}
+				chars.flip();
+			}
+			return chars.get();
+		}
+
+		@Override
+		public String toString()
+		{
+			return file.getPath();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			eof = true;
+			chars.clear();
+			chars.flip();
+			in.close();
+		}
+	}
+}
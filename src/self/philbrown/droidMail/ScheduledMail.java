@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A message waiting to be sent at a later time.
+ * @author Phil Brown
+ * @see Mailer#sendAt(MailMessage, Date)
+ * @see Mailer#sendAfter(MailMessage, long)
+ */
+public class ScheduledMail
+{
+	/** logging tag */
+	public static final String TAG = "ScheduledMail";
+
+	/** File extension of spooled messages */
+	static final String EXTENSION = ".mail";
+
+	/** Version of the spool file format */
+	private static final int VERSION = 2;
+
+	/** Sends the message */
+	private final Mailer mailer;
+
+	/** The message */
+	private final MailMessage message;
+
+	/** The delivery time, in milliseconds since the epoch */
+	private final long time;
+
+	/** The spool file, or <em>null</em> if the message is only held in memory */
+	private File spoolFile;
+
+	/** The timer wheel entry */
+	private TimerWheel.Timeout timeout;
+
+	/**
+	 * Constructor
+	 * @param mailer sends the message
+	 * @param message the message
+	 * @param time the delivery time, in milliseconds since the epoch
+	 */
+	ScheduledMail(Mailer mailer, MailMessage message, long time)
+	{
+		this.mailer = mailer;
+		this.message = message;
+		this.time = time;
+	}
+
+	/**
+	 * Adds this message to the shared {@link TimerWheel}
+	 */
+	void schedule()
+	{
+		timeout = TimerWheel.getInstance().scheduleAt(new Runnable() {
+			@Override
+			public void run()
+			{
+				//removed first, so a crash during sending does not send the message twice
+				mailer.unschedule(ScheduledMail.this);
+				deleteSpoolFile();
+				mailer.send(message);
+			}
+		}, time);
+	}
+
+	/**
+	 * Cancels delivery of this message, and removes it from the spool
+	 * @return {@code true} if the message was cancelled, or {@code false} if it has already been sent
+	 */
+	public boolean cancel()
+	{
+		if (timeout == null || !timeout.cancel())
+			return false;
+		mailer.unschedule(this);
+		deleteSpoolFile();
+		return true;
+	}
+
+	/**
+	 * Get the message
+	 * @return the message
+	 */
+	public MailMessage getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * Get the time at which this message will be sent
+	 * @return the delivery time
+	 */
+	public Date getDeliveryTime()
+	{
+		return new Date(time);
+	}
+
+	/**
+	 * Writes this message to a new file in the given spool directory. The file is written completely
+	 * before it is given its final name, so a partly written file is never loaded.
+	 * @param directory the spool directory
+	 * @throws IOException if the file could not be written
+	 */
+	synchronized void spool(File directory) throws IOException
+	{
+		if (spoolFile != null)
+			return;
+		String name = Long.toHexString(time) + "-" + Long.toHexString(System.nanoTime()) + "-" + Integer.toHexString(System.identityHashCode(this));
+		File temp = new File(directory, name + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try
+		{
+			out.writeInt(VERSION);
+			out.writeLong(time);
+			message.writeTo(out);
+		}
+		finally
+		{
+			out.close();
+		}
+		File file = new File(directory, name + EXTENSION);
+		if (!temp.renameTo(file))
+		{
+			temp.delete();
+			throw new IOException("Could not create spool file " + file);
+		}
+		spoolFile = file;
+	}
+
+	/**
+	 * Get the spool file
+	 * @return the file, or <em>null</em> if the message is only held in memory
+	 */
+	synchronized File getSpoolFile()
+	{
+		return spoolFile;
+	}
+
+	/**
+	 * Loads a message from a spool file
+	 * @param mailer sends the message
+	 * @param file the spool file
+	 * @return the message
+	 * @throws IOException if the file could not be read
+	 */
+	static ScheduledMail load(Mailer mailer, File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			int version = in.readInt();
+			if (version < 1 || version > VERSION)
+				throw new IOException("Unknown spool file version " + version);
+			long time = in.readLong();
+			ScheduledMail mail = new ScheduledMail(mailer, MailMessage.readFrom(in, version, file.length()), time);
+			mail.spoolFile = file;
+			return mail;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Deletes the spool file, if any
+	 */
+	private synchronized void deleteSpoolFile()
+	{
+		if (spoolFile != null && !spoolFile.delete() && spoolFile.exists())
+			Platform.getInstance().warn(TAG, "Could not delete " + spoolFile, null);
+		spoolFile = null;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+/**
+ * Predicts how many connections should be kept open and authenticated, from the recent send rate
+ * and the time each send keeps a connection busy. By Little's law the number of connections in use
+ * is, on average, the arrival rate multiplied by the service time. Both are smoothed with
+ * exponentially weighted moving averages, so the prediction follows bursts and decays when sending stops.
+ * @author Phil Brown
+ * @see Mailer#setAdaptiveWarmUp(boolean)
+ */
+class SendRatePredictor
+{
+	/** Weight of the newest sample in the moving averages */
+	private static final double ALPHA = 0.3;
+
+	/** Extra capacity kept warm above the average, so short bursts do not wait for new connections */
+	private static final double HEADROOM = 1.5;
+
+	/**
+	 * Below this rate, in messages per millisecond (about one message per idle timeout), no connection
+	 * is kept warm
+	 */
+	private static final double MIN_RATE = 1.0 / TransportPool.IDLE_TIMEOUT;
+
+	/** Sends since the last sample */
+	private int sends;
+
+	/** Smoothed send rate, in messages per millisecond */
+	private double rate;
+
+	/** Smoothed time a send keeps its connection busy, in milliseconds */
+	private double serviceTime;
+
+	/**
+	 * Records a completed send
+	 * @param durationMillis how long the send kept its connection busy
+	 */
+	synchronized void recordSend(long durationMillis)
+	{
+		sends++;
+		serviceTime = serviceTime == 0 ? durationMillis : serviceTime + ALPHA*(durationMillis - serviceTime);
+	}
+
+	/**
+	 * Updates the send rate with the sends recorded since the last sample
+	 * @param elapsedMillis time since the last sample
+	 */
+	synchronized void sample(long elapsedMillis)
+	{
+		if (elapsedMillis <= 0)
+			return;
+		rate += ALPHA*((double) sends / elapsedMillis - rate);
+		sends = 0;
+	}
+
+	/**
+	 * Predicts the number of connections to keep warm
+	 * @param max the largest number of connections allowed
+	 * @return the number of connections, between 0 and {@code max}
+	 */
+	synchronized int predict(int max)
+	{
+		if (rate < MIN_RATE)
+			return 0;
+		int connections = (int) Math.ceil(rate * serviceTime * HEADROOM);
+		return Math.min(max, Math.max(1, connections));
+	}
+
+	/**
+	 * Get the smoothed send rate
+	 * @return the rate, in messages per second
+	 */
+	synchronized double getRate()
+	{
+		return rate * 1000;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * The SMTP service extensions advertised by a server in its EHLO response. Capabilities are
+ * recorded each time droidMail connects to a server, and cached by host so that messages can be
+ * prepared for the server (for example, sending 8bit text) before the next connection is made.
+ * @author Phil Brown
+ */
+public class SmtpCapabilities
+{
+	/** Cached capabilities, keyed by lower-case host name */
+	private static Map<String, SmtpCapabilities> cache = new HashMap<String, SmtpCapabilities>();
+
+	/** whether or not the server accepts 8bit message bodies (RFC 6152) */
+	public final boolean eightBitMime;
+	/** whether or not the server accepts binary message bodies (RFC 3030). Requires {@link #chunking}. */
+	public final boolean binaryMime;
+	/** whether or not the server accepts the BDAT command (RFC 3030) */
+	public final boolean chunking;
+	/** whether or not the server accepts pipelined commands (RFC 2920) */
+	public final boolean pipelining;
+	/** Largest message, in bytes, the server accepts (RFC 1870), or 0 if the server did not advertise a limit */
+	public final long maxSize;
+
+	/**
+	 * Constructor
+	 * @param eightBitMime 8BITMIME support
+	 * @param binaryMime BINARYMIME support
+	 * @param chunking CHUNKING support
+	 * @param pipelining PIPELINING support
+	 * @param maxSize advertised SIZE limit
+	 */
+	public SmtpCapabilities(boolean eightBitMime, boolean binaryMime, boolean chunking, boolean pipelining, long maxSize)
+	{
+		this.eightBitMime = eightBitMime;
+		this.binaryMime = binaryMime;
+		this.chunking = chunking;
+		this.pipelining = pipelining;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Reads the capabilities of a connected transport and caches them for its host
+	 * @param host the host to which {@code transport} is connected
+	 * @param transport the connected transport
+	 * @return the capabilities
+	 */
+	public static SmtpCapabilities record(String host, SMTPTransport transport)
+	{
+		long size = 0;
+		if (transport.supportsExtension("SIZE"))
+		{
+			try
+			{
+				String param = transport.getExtensionParameter("SIZE");
+				if (param != null)
+					size = Long.parseLong(param.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				//no limit advertised
+			}
+		}
+		SmtpCapabilities caps = new SmtpCapabilities(transport.supportsExtension("8BITMIME"),
+				                                     transport.supportsExtension("BINARYMIME"),
+				                                     transport.supportsExtension("CHUNKING"),
+				                                     transport.supportsExtension("PIPELINING"),
+				                                     size);
+		synchronized (cache)
+		{
+			cache.put(host.toLowerCase(Locale.US), caps);
+		}
+		return caps;
+	}
+
+	/**
+	 * Get the capabilities last recorded for the given host
+	 * @param host the SMTP host
+	 * @return the capabilities, or <em>null</em> if droidMail has not yet connected to {@code host}
+	 */
+	public static SmtpCapabilities get(String host)
+	{
+		if (host == null)
+			return null;
+		synchronized (cache)
+		{
+			return cache.get(host.toLowerCase(Locale.US));
+		}
+	}
+}
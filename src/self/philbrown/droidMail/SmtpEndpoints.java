@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Tracks the health of the SMTP servers of an account, and chooses the server for each new connection.
+ * Each server has a circuit breaker: after {@link #FAILURE_THRESHOLD} consecutive failures the server
+ * is skipped, so messages do not each wait out its timeouts. An account with a single server has nowhere
+ * else to send, so its server is never skipped. Once the breaker has been open for a while,
+ * a single connection is allowed through as a trial, and the server is used again if it succeeds.
+ * Among the healthy servers, each is chosen with a probability inversely proportional to its average
+ * response time, so a slow server gets less of the traffic without being dropped.
+ * @author Phil Brown
+ * @see MailConfiguration#alternate_smtp_servers
+ */
+class SmtpEndpoints
+{
+	/** logging tag */
+	public static final String TAG = "SmtpEndpoints";
+
+	/** Consecutive failures after which a server is skipped */
+	static final int FAILURE_THRESHOLD = 3;
+
+	/** Time, in milliseconds, a server is first skipped for before a trial connection is allowed */
+	static final long OPEN_INTERVAL = 30000;
+
+	/** Longest time, in milliseconds, a server is skipped for. The interval doubles after each failed trial. */
+	static final long MAX_OPEN_INTERVAL = 5*60000;
+
+	/** Weight of the newest sample in the average response time */
+	private static final double ALPHA = 0.2;
+
+	/** The servers, with the configuration's main server first */
+	private final Endpoint[] endpoints;
+
+	/** Chooses between healthy servers */
+	private final Random random = new Random();
+
+	/**
+	 * Constructor
+	 * @param hosts the server host names
+	 * @see #hosts(MailConfiguration)
+	 */
+	SmtpEndpoints(String[] hosts)
+	{
+		endpoints = new Endpoint[hosts.length];
+		for (int i = 0; i < hosts.length; i++)
+			endpoints[i] = new Endpoint(hosts[i]);
+	}
+
+	/**
+	 * Lists the SMTP servers of a configuration: its {@link MailConfiguration#host_smtp_server host_smtp_server}, 
+	 * followed by any {@link MailConfiguration#alternate_smtp_servers alternates}. Blank and repeated names are skipped.
+	 * @param config the configuration
+	 * @return the host names
+	 */
+	static String[] hosts(MailConfiguration config)
+	{
+		List<String> hosts = new ArrayList<String>();
+		add(hosts, config.host_smtp_server);
+		if (config.alternate_smtp_servers != null)
+		{
+			for (String host : config.alternate_smtp_servers.split(","))
+				add(hosts, host);
+		}
+		return hosts.toArray(new String[hosts.size()]);
+	}
+
+	/**
+	 * Adds a host name to a list, unless it is blank or already listed
+	 * @param hosts the list
+	 * @param host the host name
+	 */
+	private static void add(List<String> hosts, String host)
+	{
+		if (host == null)
+			return;
+		host = host.trim();
+		if (host.length() == 0)
+			return;
+		for (String h : hosts)
+		{
+			if (h.equalsIgnoreCase(host))
+				return;
+		}
+		hosts.add(host);
+	}
+
+	/**
+	 * Determines whether or not this tracks exactly the given servers, in the same order
+	 * @param hosts the host names
+	 * @return {@code true} if the servers are the same
+	 */
+	boolean matches(String[] hosts)
+	{
+		if (hosts.length != endpoints.length)
+			return false;
+		for (int i = 0; i < hosts.length; i++)
+		{
+			if (!endpoints[i].host.equalsIgnoreCase(hosts[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of servers
+	 * @return the number of servers
+	 */
+	int size()
+	{
+		return endpoints.length;
+	}
+
+	/**
+	 * Chooses the server for a new connection. A server whose breaker is due for a trial is chosen first;
+	 * otherwise a healthy server is chosen at random, weighted by the inverse of its response time.
+	 * Servers that have not responded yet are weighted as the fastest server, so they are tried early.
+	 * @param exclude servers that have already failed for the current message
+	 * @return the host name, or <em>null</em> if every server is being skipped
+	 */
+	synchronized String select(Collection<String> exclude)
+	{
+		long now = System.currentTimeMillis();
+		List<Endpoint> healthy = new ArrayList<Endpoint>(endpoints.length);
+		double fastest = 0;
+		for (Endpoint e : endpoints)
+		{
+			if (exclude.contains(e.host))
+				continue;
+			if (e.openedAt != 0)
+			{
+				if (now - e.openedAt >= e.openInterval)
+				{
+					//allow one trial per interval, even if an earlier trial never reported back
+					e.trying = true;
+					e.openedAt = now;
+					return e.host;
+				}
+				continue;
+			}
+			healthy.add(e);
+			if (e.latency > 0 && (fastest == 0 || e.latency < fastest))
+				fastest = e.latency;
+		}
+		if (healthy.isEmpty())
+			return null;
+		if (healthy.size() == 1)
+			return healthy.get(0).host;
+
+		double[] weights = new double[healthy.size()];
+		double total = 0;
+		for (int i = 0; i < weights.length; i++)
+		{
+			double latency = healthy.get(i).latency;
+			if (latency <= 0)
+				latency = fastest > 0 ? fastest : 1;
+			weights[i] = 1/latency;
+			total += weights[i];
+		}
+		double r = random.nextDouble()*total;
+		for (int i = 0; i < weights.length; i++)
+		{
+			r -= weights[i];
+			if (r < 0)
+				return healthy.get(i).host;
+		}
+		return healthy.get(weights.length - 1).host;
+	}
+
+	/**
+	 * Records a successful connection or message. Closes the server's breaker.
+	 * @param host the server
+	 * @param millis how long the server took to respond
+	 */
+	synchronized void success(String host, long millis)
+	{
+		Endpoint e = find(host);
+		if (e == null)
+			return;
+		if (e.openedAt != 0)
+			Platform.getInstance().debug(TAG, host + " has recovered", null);
+		e.failures = 0;
+		e.openedAt = 0;
+		e.trying = false;
+		e.openInterval = OPEN_INTERVAL;
+		e.latency = e.latency == 0 ? Math.max(1, millis) : e.latency + ALPHA*(Math.max(1, millis) - e.latency);
+	}
+
+	/**
+	 * Records a failed connection or message. Opens the server's breaker after {@link #FAILURE_THRESHOLD} 
+	 * consecutive failures, or if a trial failed, unless it is the only server.
+	 * @param host the server
+	 */
+	synchronized void failure(String host)
+	{
+		Endpoint e = find(host);
+		if (e == null)
+			return;
+		e.failures++;
+		if (e.trying)
+		{
+			e.trying = false;
+			e.openInterval = Math.min(MAX_OPEN_INTERVAL, e.openInterval*2);
+			e.openedAt = System.currentTimeMillis();
+		}
+		else if (e.openedAt == 0 && e.failures >= FAILURE_THRESHOLD && endpoints.length > 1)
+		{
+			e.openedAt = System.currentTimeMillis();
+			Platform.getInstance().warn(TAG, host + " failed " + e.failures + " times. Skipping it for " + e.openInterval/1000 + " seconds.", null);
+		}
+	}
+
+	/**
+	 * Finds a server by host name
+	 * @param host the host name
+	 * @return the server, or <em>null</em> if it is not tracked
+	 */
+	private Endpoint find(String host)
+	{
+		for (Endpoint e : endpoints)
+		{
+			if (e.host.equalsIgnoreCase(host))
+				return e;
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (Endpoint e : endpoints)
+		{
+			if (builder.length() > 0)
+				builder.append(", ");
+			builder.append(e.host).append(e.openedAt != 0 ? " (skipped)" : "")
+			       .append(String.format(Locale.US, " %.0fms", e.latency));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * The health of one server
+	 */
+	private static class Endpoint
+	{
+		/** the host name */
+		final String host;
+		/** consecutive failures */
+		int failures;
+		/** when the breaker opened, or 0 if it is closed */
+		long openedAt;
+		/** how long the breaker stays open before a trial */
+		long openInterval = OPEN_INTERVAL;
+		/** whether or not the last connection was a trial */
+		boolean trying;
+		/** average response time, in milliseconds, or 0 if the server has not responded yet */
+		double latency;
+
+		/**
+		 * Constructor
+		 * @param host the host name
+		 */
+		Endpoint(String host)
+		{
+			this.host = host;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * SMTP transport that requires STARTTLS. The bundled JavaMail only upgrades the connection if the
+ * server offers STARTTLS, so an attacker who removes it from the EHLO response would otherwise receive
+ * the login and the message in plain text. This transport fails the connection instead, before
+ * anything but EHLO has been sent.
+ * @author Phil Brown
+ * @see MailConfiguration#smtp_starttls
+ */
+class StartTLSTransport extends SMTPTransport
+{
+	/** whether or not the current connection has been upgraded to TLS */
+	private boolean upgraded;
+
+	/**
+	 * Constructor
+	 * @param session the session, which must enable STARTTLS for the <em>smtp</em> protocol
+	 */
+	StartTLSTransport(Session session)
+	{
+		super(session, new URLName("smtp", null, -1, null, null, null));
+	}
+
+	@Override
+	protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException
+	{
+		upgraded = false;
+		try
+		{
+			return super.protocolConnect(host, port, user, password);
+		}
+		catch (MessagingException e)
+		{
+			//close() only closes the socket of a connected transport
+			setConnected(true);
+			try
+			{
+				close();
+			}
+			catch (MessagingException e2)
+			{
+				Platform.getInstance().debug(Mailer.TAG, "Could not close transport", e2);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	protected boolean ehlo(String domain) throws MessagingException
+	{
+		boolean ok = super.ehlo(domain);
+		if (ok && !upgraded && !supportsExtension("STARTTLS"))
+			throw new MessagingException("Server does not offer STARTTLS. Not sending credentials in plain text.");
+		return ok;
+	}
+
+	@Override
+	protected void helo(String domain) throws MessagingException
+	{
+		if (!upgraded)
+			throw new MessagingException("Server does not support EHLO, so cannot use STARTTLS. Not sending credentials in plain text.");
+		super.helo(domain);
+	}
+
+	@Override
+	protected void startTLS() throws MessagingException
+	{
+		super.startTLS();
+		upgraded = true;
+	}
+}
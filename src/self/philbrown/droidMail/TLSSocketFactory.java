@@ -0,0 +1,379 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@code SSLSocketFactory} backed by a single, shared {@link SSLContext}. Since every connection
+ * made by droidMail uses the same context, TLS sessions are cached and resumed across connections
+ * to the same host, so reconnecting skips the full handshake.<p>
+ * JavaMail instantiates socket factories by name (using the static {@code getDefault()} method), so
+ * this class is referenced from the {@code mail.<protocol>.socketFactory.class} property. Use this class
+ * for implicit SSL connections, and {@link StartTLS} for connections that upgrade using STARTTLS.
+ * @author Phil Brown
+ */
+public class TLSSocketFactory extends SSLSocketFactory
+{
+	/** Number of TLS sessions to keep for resumption */
+	private static final int SESSION_CACHE_SIZE = 64;
+
+	/** Time, in seconds, that a cached TLS session may be resumed */
+	private static final int SESSION_TIMEOUT = 8*60*60;
+
+	/** The shared context */
+	private static SSLContext context;
+
+	/** Shared implicit SSL factory */
+	private static TLSSocketFactory instance;
+
+	/** Shared STARTTLS factory */
+	private static StartTLS startTLSInstance;
+
+	/** The factory for {@link #context} */
+	protected final SSLSocketFactory delegate;
+
+	/**
+	 * Constructor
+	 * @param delegate the factory to which all socket creation is delegated
+	 */
+	protected TLSSocketFactory(SSLSocketFactory delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Get the shared {@code SSLContext} used for all mail connections
+	 * @return the context
+	 */
+	public static synchronized SSLContext getContext()
+	{
+		if (context == null)
+		{
+			try
+			{
+				SSLContext ctx = SSLContext.getInstance("TLS");
+				ctx.init(null, null, null);
+				SSLSessionContext sessions = ctx.getClientSessionContext();
+				if (sessions != null)
+				{
+					sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+					sessions.setSessionTimeout(SESSION_TIMEOUT);
+				}
+				context = ctx;
+			}
+			catch (GeneralSecurityException e)
+			{
+				throw new IllegalStateException("TLS is not available", e);
+			}
+		}
+		return context;
+	}
+
+	/**
+	 * Sets the shared {@code SSLContext}, such as one initialized with custom trust managers.
+	 * Sessions cached by the previous context are not carried over.
+	 * @param ctx the new context
+	 */
+	public static synchronized void setContext(SSLContext ctx)
+	{
+		if (ctx == null)
+			throw new NullPointerException("Cannot use null SSLContext");
+		context = ctx;
+		instance = null;
+		startTLSInstance = null;
+	}
+
+	/**
+	 * Get the shared factory for implicit SSL connections. Called reflectively by JavaMail.
+	 * @return the shared factory
+	 */
+	public static synchronized SocketFactory getDefault()
+	{
+		if (instance == null)
+			instance = new TLSSocketFactory(getContext().getSocketFactory());
+		return instance;
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites()
+	{
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites()
+	{
+		return delegate.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
+	{
+		return delegate.createSocket(s, host, port, autoClose);
+	}
+
+	@Override
+	public Socket createSocket() throws IOException
+	{
+		return delegate.createSocket();
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException
+	{
+		return delegate.createSocket(host, port);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException
+	{
+		return delegate.createSocket(host, port);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+	{
+		return delegate.createSocket(host, port, localHost, localPort);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+	{
+		return delegate.createSocket(address, port, localAddress, localPort);
+	}
+
+	/**
+	 * Factory for connections that start in plain text and are upgraded using STARTTLS. New sockets
+	 * are plain, while layering (which JavaMail does once the server accepts STARTTLS) uses the
+	 * shared {@code SSLContext}.<p>
+	 * The bundled JavaMail treats STARTTLS as optional, and carries on in plain text if the server does 
+	 * not offer it. To keep credentials from being sent in the clear, a plain socket only carries the
+	 * commands that negotiate TLS (such as <em>EHLO</em>, <em>CAPABILITY</em> and <em>STARTTLS</em>)
+	 * until TLS has been layered over it. Any other command fails with an {@code IOException}, which
+	 * fails the connection.
+	 */
+	public static class StartTLS extends TLSSocketFactory
+	{
+		/** Commands, in upper case, that may be sent before the connection is upgraded */
+		private static final String[] PLAIN_COMMANDS = {"EHLO", "HELO", "STARTTLS", "QUIT", "CAPABILITY", "LOGOUT", "NOOP", "CAPA", "STLS"};
+
+		/**
+		 * Constructor
+		 * @param delegate the factory used to layer TLS over existing sockets
+		 */
+		protected StartTLS(SSLSocketFactory delegate)
+		{
+			super(delegate);
+		}
+
+		/**
+		 * Get the shared STARTTLS factory. Called reflectively by JavaMail.
+		 * @return the shared factory
+		 */
+		public static SocketFactory getDefault()
+		{
+			synchronized (TLSSocketFactory.class)
+			{
+				if (startTLSInstance == null)
+					startTLSInstance = new StartTLS(getContext().getSocketFactory());
+				return startTLSInstance;
+			}
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
+		{
+			if (s instanceof PlainSocket)
+				((PlainSocket) s).upgraded = true;
+			return super.createSocket(s, host, port, autoClose);
+		}
+
+		@Override
+		public Socket createSocket() throws IOException
+		{
+			return new PlainSocket();
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException
+		{
+			return new PlainSocket(host, port);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException
+		{
+			return new PlainSocket(host, port);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+		{
+			return new PlainSocket(host, port, localHost, localPort);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+		{
+			return new PlainSocket(address, port, localAddress, localPort);
+		}
+
+		/**
+		 * Determines whether or not a command may be sent before the connection is upgraded
+		 * @param line the command line, without its line ending
+		 * @return {@code true} if the first or second word (after an IMAP tag) is a TLS negotiation command
+		 */
+		static boolean isPlainCommand(String line)
+		{
+			String[] words = line.trim().split("\\s+", 3);
+			for (int i = 0; i < Math.min(2, words.length); i++)
+			{
+				String word = words[i].toUpperCase(Locale.US);
+				for (String command : PLAIN_COMMANDS)
+				{
+					if (command.equals(word))
+						return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * A plain socket that refuses to send anything but TLS negotiation commands until TLS is layered over it
+		 */
+		private static class PlainSocket extends Socket
+		{
+			/** set once TLS has been layered over this socket, after which everything is sent */
+			volatile boolean upgraded;
+			/** the guarded output stream */
+			private OutputStream output;
+
+			/**
+			 * Constructor. Creates an unconnected socket.
+			 */
+			PlainSocket()
+			{
+				super();
+			}
+
+			/**
+			 * Constructor
+			 * @param host the host
+			 * @param port the port
+			 * @throws IOException if the connection could not be made
+			 */
+			PlainSocket(String host, int port) throws IOException
+			{
+				super(host, port);
+			}
+
+			/**
+			 * Constructor
+			 * @param host the host
+			 * @param port the port
+			 * @throws IOException if the connection could not be made
+			 */
+			PlainSocket(InetAddress host, int port) throws IOException
+			{
+				super(host, port);
+			}
+
+			/**
+			 * Constructor
+			 * @param host the host
+			 * @param port the port
+			 * @param localHost the local address
+			 * @param localPort the local port
+			 * @throws IOException if the connection could not be made
+			 */
+			PlainSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+			{
+				super(host, port, localHost, localPort);
+			}
+
+			/**
+			 * Constructor
+			 * @param host the host
+			 * @param port the port
+			 * @param localHost the local address
+			 * @param localPort the local port
+			 * @throws IOException if the connection could not be made
+			 */
+			PlainSocket(InetAddress host, int port, InetAddress localHost, int localPort) throws IOException
+			{
+				super(host, port, localHost, localPort);
+			}
+
+			@Override
+			public synchronized OutputStream getOutputStream() throws IOException
+			{
+				if (output == null)
+				{
+					output = new FilterOutputStream(super.getOutputStream()) {
+						/** the command being written */
+						private final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+
+						@Override
+						public void write(int b) throws IOException
+						{
+							if (upgraded)
+							{
+								out.write(b);
+								return;
+							}
+							line.write(b);
+							if (b == '\n')
+							{
+								String command = line.toString("ISO-8859-1");
+								if (!isPlainCommand(command))
+									throw new IOException("Connection was not upgraded with STARTTLS. Not sending credentials in plain text.");
+								line.writeTo(out);
+								line.reset();
+							}
+						}
+
+						@Override
+						public void write(byte[] b, int off, int len) throws IOException
+						{
+							if (upgraded)
+							{
+								out.write(b, off, len);
+								return;
+							}
+							for (int i = 0; i < len; i++)
+								write(b[off + i]);
+						}
+					};
+				}
+				return output;
+			}
+		}
+	}
+}
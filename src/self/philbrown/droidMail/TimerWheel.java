@@ -0,0 +1,421 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel, used to run large numbers of delayed tasks cheaply.<p>
+ * Each level of the wheel has {@link #SLOTS} slots. A slot on the first level covers one tick, and a
+ * slot on each higher level covers a full revolution of the level below it. A task is placed in the
+ * slot of the lowest level whose range covers its deadline, and is moved down a level each time the
+ * wheel turns past its slot. Scheduling and cancelling are constant time, and pending tasks cost
+ * nothing until they are near their deadline. The timer thread sleeps until the next tick at which a
+ * task can expire or a higher-level slot must be moved down, rather than waking on every tick, and
+ * sleeps indefinitely while the wheel is empty.
+ * @author Phil Brown
+ */
+public class TimerWheel
+{
+	/** logging tag */
+	public static final String TAG = "TimerWheel";
+
+	/** Bits used to index a slot in a level */
+	private static final int SLOT_BITS = 6;
+
+	/** Number of slots in each level */
+	public static final int SLOTS = 1 << SLOT_BITS;
+
+	/** Number of levels. With the default tick, the wheel spans about 3.4 years; later timeouts are parked at its end and placed again. */
+	private static final int LEVELS = 5;
+
+	/** Default tick length, in milliseconds */
+	public static final long DEFAULT_TICK = 100;
+
+	/** The shared instance */
+	private static TimerWheel self;
+
+	/** Length of one tick, in milliseconds */
+	private final long tickMillis;
+
+	/** Slots of each level. Each slot is the sentinel of a circular list of timeouts. */
+	private final Timeout[][] wheel;
+
+	/** The time at which tick zero began */
+	private final long startTime;
+
+	/** The last tick that was processed */
+	private long currentTick;
+
+	/** Number of pending timeouts */
+	private int pending;
+
+	/** The tick at which the timer thread will next wake */
+	private long wakeTick;
+
+	/** Runs expired tasks */
+	private Thread thread;
+
+	/**
+	 * Constructor
+	 * @param tickMillis length of one tick, in milliseconds. Tasks run up to one tick after their deadline.
+	 */
+	public TimerWheel(long tickMillis)
+	{
+		if (tickMillis <= 0)
+			throw new IllegalArgumentException("Tick must be positive!");
+		this.tickMillis = tickMillis;
+		this.startTime = System.currentTimeMillis();
+		wheel = new Timeout[LEVELS][SLOTS];
+		for (int level = 0; level < LEVELS; level++)
+		{
+			for (int slot = 0; slot < SLOTS; slot++)
+			{
+				Timeout sentinel = new Timeout(null, 0);
+				sentinel.next = sentinel;
+				sentinel.prev = sentinel;
+				wheel[level][slot] = sentinel;
+			}
+		}
+	}
+
+	/**
+	 * Get the shared timer wheel, which ticks every {@link #DEFAULT_TICK} milliseconds
+	 * @return the shared instance
+	 */
+	public static synchronized TimerWheel getInstance()
+	{
+		if (self == null)
+			self = new TimerWheel(DEFAULT_TICK);
+		return self;
+	}
+
+	/**
+	 * Schedules a task to run after the given delay
+	 * @param task the task to run. It is run on the timer thread, so it should return quickly.
+	 * @param delayMillis the delay, in milliseconds
+	 * @return a handle that can be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis)
+	{
+		return scheduleAt(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+	}
+
+	/**
+	 * Schedules a task to run at the given time
+	 * @param task the task to run. It is run on the timer thread, so it should return quickly.
+	 * @param time the time, in milliseconds since the epoch. Times in the past run on the next tick.
+	 * @return a handle that can be used to cancel the task
+	 */
+	public Timeout scheduleAt(Runnable task, long time)
+	{
+		if (task == null)
+			throw new NullPointerException("Cannot schedule null task!");
+		Timeout timeout = new Timeout(task, time);
+		synchronized (this)
+		{
+			if (pending == 0)
+			{
+				//nothing is waiting, so skip the idle ticks rather than processing them one by one
+				currentTick = Math.max(currentTick, tickAt(System.currentTimeMillis()) - 1);
+			}
+			timeout.tick = Math.max(currentTick + 1, (time - startTime + tickMillis - 1) / tickMillis);
+			insert(timeout);
+			pending++;
+			if (thread == null)
+			{
+				thread = new Thread(new Runnable() {
+					@Override
+					public void run()
+					{
+						loop();
+					}
+				}, TAG);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			else if (pending == 1 || timeout.tick < wakeTick)
+				notifyAll();
+		}
+		return timeout;
+	}
+
+	/**
+	 * Get the number of tasks waiting to run
+	 * @return the number of pending tasks
+	 */
+	public synchronized int size()
+	{
+		return pending;
+	}
+
+	/**
+	 * Get the tick in progress at the given time
+	 * @param time the time, in milliseconds since the epoch
+	 * @return the tick
+	 */
+	private long tickAt(long time)
+	{
+		return (time - startTime) / tickMillis;
+	}
+
+	/**
+	 * Places a timeout in the slot that covers its tick. Must be called while holding the lock.
+	 * @param timeout the timeout
+	 */
+	private void insert(Timeout timeout)
+	{
+		long delta = timeout.tick - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS*(level + 1)))
+			level++;
+		long tick = timeout.tick;
+		if (level == LEVELS - 1)
+		{
+			//beyond the top level, park it in the furthest slot. It is placed again when that slot turns.
+			long max = currentTick + (1L << (SLOT_BITS*LEVELS)) - 1;
+			if (tick > max)
+				tick = max;
+		}
+		int slot = (int) ((tick >>> (SLOT_BITS*level)) & (SLOTS - 1));
+		Timeout sentinel = wheel[level][slot];
+		timeout.prev = sentinel.prev;
+		timeout.next = sentinel;
+		sentinel.prev.next = timeout;
+		sentinel.prev = timeout;
+	}
+
+	/**
+	 * Removes a timeout from its slot. Must be called while holding the lock.
+	 * @param timeout the timeout
+	 */
+	private static void unlink(Timeout timeout)
+	{
+		timeout.prev.next = timeout.next;
+		timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+	/**
+	 * Advances the wheel by one tick. Higher-level slots that the wheel has turned past are moved down,
+	 * and the timeouts in the current first-level slot are collected.
+	 * Must be called while holding the lock.
+	 * @param expired receives the timeouts that have expired
+	 */
+	private void advance(List<Timeout> expired)
+	{
+		currentTick++;
+		for (int level = 1; level < LEVELS; level++)
+		{
+			if ((currentTick & ((1L << (SLOT_BITS*level)) - 1)) != 0)
+				break;
+			int slot = (int) ((currentTick >>> (SLOT_BITS*level)) & (SLOTS - 1));
+			Timeout sentinel = wheel[level][slot];
+			Timeout t = sentinel.next;
+			sentinel.next = sentinel;
+			sentinel.prev = sentinel;
+			while (t != sentinel)
+			{
+				Timeout next = t.next;
+				insert(t);
+				t = next;
+			}
+		}
+		Timeout sentinel = wheel[0][(int) (currentTick & (SLOTS - 1))];
+		Timeout t = sentinel.next;
+		while (t != sentinel)
+		{
+			Timeout next = t.next;
+			if (t.tick <= currentTick)
+			{
+				unlink(t);
+				t.expired = true;
+				pending--;
+				expired.add(t);
+			}
+			t = next;
+		}
+	}
+
+	/**
+	 * Finds the next tick at which there is work to do: the first occupied slot of the first level, or the
+	 * first boundary at which an occupied higher-level slot is moved down. Must be called while holding the lock.
+	 * @return the tick
+	 */
+	private long nextTick()
+	{
+		long next = Long.MAX_VALUE;
+		for (int i = 1; i < SLOTS; i++)
+		{
+			Timeout sentinel = wheel[0][(int) ((currentTick + i) & (SLOTS - 1))];
+			if (sentinel.next != sentinel)
+			{
+				next = currentTick + i;
+				break;
+			}
+		}
+		for (int level = 1; level < LEVELS; level++)
+		{
+			int shift = SLOT_BITS*level;
+			long turn = currentTick >>> shift;
+			for (int i = 1; i <= SLOTS; i++)
+			{
+				long boundary = (turn + i) << shift;
+				if (boundary >= next)
+					break;
+				Timeout sentinel = wheel[level][(int) ((turn + i) & (SLOTS - 1))];
+				if (sentinel.next != sentinel)
+				{
+					next = boundary;
+					break;
+				}
+			}
+		}
+		//cannot happen while timeouts are pending, but never sleep forever on a mistake
+		return next == Long.MAX_VALUE ? currentTick + 1 : next;
+	}
+
+	/**
+	 * Runs on the timer thread, processing ticks as they pass and running expired tasks
+	 */
+	private void loop()
+	{
+		List<Timeout> expired = new ArrayList<Timeout>();
+		while (true)
+		{
+			synchronized (this)
+			{
+				try
+				{
+					while (pending == 0)
+						wait();
+					long now = tickAt(System.currentTimeMillis());
+					if (now <= currentTick)
+					{
+						wakeTick = nextTick();
+						wait(Math.max(1, startTime + wakeTick*tickMillis - System.currentTimeMillis()));
+						continue;
+					}
+					while (currentTick < now && pending > 0)
+						advance(expired);
+					if (pending == 0)
+						currentTick = now;
+				}
+				catch (InterruptedException e)
+				{
+					Platform.getInstance().warn(TAG, "Timer thread interrupted", e);
+					thread = null;
+					return;
+				}
+			}
+			for (Timeout t : expired)
+			{
+				try
+				{
+					t.task.run();
+				}
+				catch (Throwable e)
+				{
+					Platform.getInstance().warn(TAG, "Scheduled task failed", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * A handle to a scheduled task
+	 */
+	public class Timeout
+	{
+		/** The task to run */
+		private final Runnable task;
+		/** The requested run time, in milliseconds since the epoch */
+		private final long deadline;
+		/** The tick on which the task runs */
+		private long tick;
+		/** Neighbours in the slot's list. <em>null</em> when not scheduled. */
+		private Timeout prev, next;
+		/** whether or not the task has been handed to the timer thread */
+		private boolean expired;
+		/** whether or not the task was cancelled */
+		private boolean cancelled;
+
+		/**
+		 * Constructor
+		 * @param task the task
+		 * @param deadline the requested run time
+		 */
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task, if it has not yet run
+		 * @return {@code true} if the task was cancelled, or {@code false} if it has already run or was already cancelled
+		 */
+		public boolean cancel()
+		{
+			synchronized (TimerWheel.this)
+			{
+				if (expired || cancelled)
+					return false;
+				cancelled = true;
+				unlink(this);
+				pending--;
+				return true;
+			}
+		}
+
+		/**
+		 * Get the requested run time
+		 * @return the time, in milliseconds since the epoch
+		 */
+		public long getDeadline()
+		{
+			return deadline;
+		}
+
+		/**
+		 * Get whether or not this task was cancelled
+		 * @return {@code true} if {@link #cancel()} succeeded
+		 */
+		public boolean isCancelled()
+		{
+			synchronized (TimerWheel.this)
+			{
+				return cancelled;
+			}
+		}
+
+		/**
+		 * Get whether or not this task has been run, or is about to be run
+		 * @return {@code true} if the deadline has passed
+		 */
+		public boolean isExpired()
+		{
+			synchronized (TimerWheel.this)
+			{
+				return expired;
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+/**
+ * Chooses the content-transfer-encoding for a message part, and predicts its encoded size.<p>
+ * Text is scanned exactly once: the same pass counts its UTF-8 length, its non-ASCII bytes, and its
+ * longest line, which is all that is needed to pick the smallest legal encoding. This avoids
+ * JavaMail's own detection, which reads the content again when the message is written.
+ * @author Phil Brown
+ */
+public class TransferEncoding
+{
+	/** Longest line, in bytes excluding CRLF, allowed by RFC 5322 for 7bit and 8bit content */
+	public static final int MAX_LINE_LENGTH = 998;
+
+	/** Line length used by base64 and quoted-printable encoders */
+	private static final int ENCODED_LINE_LENGTH = 76;
+
+	/** the chosen encoding, such as <em>7bit</em>, <em>8bit</em>, <em>quoted-printable</em> or <em>base64</em> */
+	private final String encoding;
+
+	/** size, in bytes, of the content before encoding */
+	private final long rawSize;
+
+	/** estimated size, in bytes, of the content after encoding */
+	private final long encodedSize;
+
+	/**
+	 * Constructor
+	 * @param encoding the chosen encoding
+	 * @param rawSize size before encoding
+	 * @param encodedSize estimated size after encoding
+	 */
+	private TransferEncoding(String encoding, long rawSize, long encodedSize)
+	{
+		this.encoding = encoding;
+		this.rawSize = rawSize;
+		this.encodedSize = encodedSize;
+	}
+
+	/**
+	 * Chooses the encoding for the given text, which will be sent as UTF-8
+	 * @param text the text content
+	 * @param allow8bit {@code true} if the server advertised 8BITMIME, so non-ASCII text can be sent unencoded
+	 * @return the chosen encoding
+	 */
+	public static TransferEncoding forText(CharSequence text, boolean allow8bit)
+	{
+		long bytes = 0;
+		long nonAscii = 0;
+		long lineBreaks = 0;
+		int line = 0;
+		int longestLine = 0;
+		boolean bareLineEnd = false;
+		int length = text.length();
+		for (int i = 0; i < length; i++)
+		{
+			char c = text.charAt(i);
+			int size;
+			if (c < 0x80)
+			{
+				size = 1;
+				if (c == '\n' || c == '\r')
+				{
+					if (c == '\r' && (i + 1 >= length || text.charAt(i + 1) != '\n'))
+						bareLineEnd = true;
+					if (c == '\n')
+						lineBreaks++;
+					longestLine = Math.max(longestLine, line);
+					line = 0;
+					bytes++;
+					continue;
+				}
+				if (c == 0)
+					bareLineEnd = true;
+			}
+			else if (c < 0x800)
+				size = 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				size = 4;
+				i++;
+			}
+			else
+				size = 3;
+
+			if (size > 1)
+				nonAscii += size;
+			bytes += size;
+			line += size;
+		}
+		longestLine = Math.max(longestLine, line);
+
+		boolean linesOk = longestLine <= MAX_LINE_LENGTH && !bareLineEnd;
+		if (linesOk && nonAscii == 0)
+			return new TransferEncoding("7bit", bytes, bytes);
+		if (linesOk && allow8bit)
+			return new TransferEncoding("8bit", bytes, bytes);
+
+		long base64 = base64Size(bytes);
+		//quoted-printable expands each non-ASCII byte to three characters, and adds soft line breaks.
+		long qpChars = bytes + 2*nonAscii;
+		long qp = qpChars + 3*(qpChars/ENCODED_LINE_LENGTH) + lineBreaks;
+		if (qp <= base64)
+			return new TransferEncoding("quoted-printable", bytes, qp);
+		return new TransferEncoding("base64", bytes, base64);
+	}
+
+	/**
+	 * Chooses the encoding for binary content, such as an attachment, without reading it.
+	 * Without BINARYMIME support in the transport, binary content is always sent as base64.
+	 * @param size the content size, in bytes
+	 * @return the chosen encoding
+	 */
+	public static TransferEncoding forBinary(long size)
+	{
+		return new TransferEncoding("base64", size, base64Size(size));
+	}
+
+	/**
+	 * Calculates the size of base64 encoded content, including line breaks
+	 * @param size the size before encoding
+	 * @return the size after encoding
+	 */
+	public static long base64Size(long size)
+	{
+		long chars = ((size + 2)/3)*4;
+		return chars + 2*((chars + ENCODED_LINE_LENGTH - 1)/ENCODED_LINE_LENGTH);
+	}
+
+	/**
+	 * Get the chosen encoding
+	 * @return the value for the {@code Content-Transfer-Encoding} header
+	 */
+	public String getEncoding()
+	{
+		return encoding;
+	}
+
+	/**
+	 * Get the size of the content before encoding
+	 * @return the size in bytes
+	 */
+	public long getRawSize()
+	{
+		return rawSize;
+	}
+
+	/**
+	 * Get the estimated size of the content after encoding
+	 * @return the size in bytes
+	 */
+	public long getEncodedSize()
+	{
+		return encodedSize;
+	}
+
+	@Override
+	public String toString()
+	{
+		return encoding;
+	}
+}
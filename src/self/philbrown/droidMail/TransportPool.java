@@ -0,0 +1,435 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.droidMail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Keeps connected, authenticated SMTP transports so that consecutive messages do not each pay for
+ * a new connection, TLS handshake and login. Each new connection is made to the server chosen by the
+ * account's {@link SmtpEndpoints}. A connection left idle for {@link #IDLE_TIMEOUT} is closed by a
+ * timer on the shared {@link TimerWheel}.
+ * @author Phil Brown
+ */
+class TransportPool
+{
+	/** logging tag */
+	public static final String TAG = "TransportPool";
+
+	/** Idle connections are closed after this many milliseconds, before the server drops them */
+	static final long IDLE_TIMEOUT = 60000;
+
+	/** Connections idle for less than this many milliseconds are reused without first checking them with NOOP */
+	private static final long VALIDATE_AFTER = 2000;
+
+	/** Opens new connections */
+	private final Mailer mailer;
+
+	/** Idle connections. The most recently used are at the front. */
+	private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+	/** Number of connections being opened by {@link #warm(int)}. Guarded by {@link #idle}. */
+	private int warming;
+
+	/**
+	 * Constructor
+	 * @param mailer opens new connections
+	 */
+	TransportPool(Mailer mailer)
+	{
+		this.mailer = mailer;
+	}
+
+	/**
+	 * Get a connected transport to one of the account's SMTP servers, reusing an idle one if possible.
+	 * The server is chosen by {@link SmtpEndpoints}. If it cannot be reached, the failure is recorded and 
+	 * the next server is tried.
+	 * @param exclude servers that have already failed the current message, and are not tried again
+	 * @return the connection. Must be returned with {@link #release(Connection)} or {@link #discard(Connection)}.
+	 * @throws MessagingException if no server could be reached, or every server is being skipped
+	 */
+	Connection acquire(List<String> exclude) throws MessagingException
+	{
+		Session session = mailer.getSendSession();
+		SmtpEndpoints endpoints = mailer.getEndpoints();
+		List<String> failed = new ArrayList<String>(exclude);
+		MessagingException failure = null;
+		while (true)
+		{
+			String host = endpoints.select(failed);
+			if (host == null)
+				throw failure != null ? failure : new MessagingException("Every SMTP server is failing. Not connecting until the next trial.");
+			Connection connection = reuse(session, host);
+			if (connection != null)
+				return connection;
+			try
+			{
+				return connect(session, host, endpoints);
+			}
+			catch (MessagingException e)
+			{
+				Platform.getInstance().warn(TAG, "Could not connect to " + host, e);
+				failed.add(host);
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Takes an idle connection to the given server, and closes any that are stale
+	 * @param session the current session
+	 * @param host the server
+	 * @return the connection, or <em>null</em> if there is no usable idle connection to {@code host}
+	 */
+	private Connection reuse(Session session, String host)
+	{
+		List<Connection> stale = new ArrayList<Connection>();
+		Connection connection = null;
+		long now = System.currentTimeMillis();
+		synchronized (idle)
+		{
+			Iterator<Connection> it = idle.iterator();
+			while (it.hasNext())
+			{
+				Connection c = it.next();
+				if (c.session != session || now - c.idleSince > IDLE_TIMEOUT)
+				{
+					//the configuration has changed, or the server has probably closed it
+					it.remove();
+					unpark(c);
+					stale.add(c);
+				}
+				else if (connection == null && c.host.equals(host))
+				{
+					it.remove();
+					unpark(c);
+					connection = c;
+				}
+			}
+		}
+		for (Connection c : stale)
+			close(c.transport);
+
+		if (connection != null)
+		{
+			if (now - connection.idleSince < VALIDATE_AFTER || connection.transport.isConnected())
+				return connection;
+			close(connection.transport);
+		}
+		return null;
+	}
+
+	/**
+	 * Opens a new connection, and records the result with the server's health
+	 * @param session the session
+	 * @param host the server
+	 * @param endpoints tracks the server's health
+	 * @return the connection
+	 * @throws MessagingException if the connection could not be made
+	 */
+	private Connection connect(Session session, String host, SmtpEndpoints endpoints) throws MessagingException
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			Transport transport = mailer.connect(session, host);
+			endpoints.success(host, System.currentTimeMillis() - start);
+			return new Connection(transport, session, host);
+		}
+		catch (MessagingException e)
+		{
+			endpoints.failure(host);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool after a message has been sent successfully. The connection is not
+	 * probed here, since that would add a round trip to every send. {@link #acquire()} checks it if it 
+	 * has been idle for long enough that the server may have closed it.
+	 * @param connection the connection
+	 */
+	void release(Connection connection)
+	{
+		synchronized (idle)
+		{
+			park(connection);
+		}
+	}
+
+	/**
+	 * Adds a connection to the front of the idle list, and schedules it to be closed once it has been
+	 * idle for {@link #IDLE_TIMEOUT}. Must be called while holding the lock on {@link #idle}.
+	 * @param connection the connection
+	 */
+	private void park(final Connection connection)
+	{
+		connection.idleSince = System.currentTimeMillis();
+		idle.addFirst(connection);
+		connection.expiry = TimerWheel.getInstance().schedule(new Runnable() {
+			@Override
+			public void run()
+			{
+				expire(connection);
+			}
+		}, IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Cancels the expiry of a connection taken from the idle list. Must be called while holding the lock on {@link #idle}.
+	 * @param connection the connection
+	 */
+	private static void unpark(Connection connection)
+	{
+		if (connection.expiry != null)
+		{
+			connection.expiry.cancel();
+			connection.expiry = null;
+		}
+	}
+
+	/**
+	 * Closes a connection that is still idle when its expiry runs
+	 * @param connection the connection
+	 */
+	private void expire(final Connection connection)
+	{
+		synchronized (idle)
+		{
+			if (!idle.remove(connection))
+				return;
+			connection.expiry = null;
+		}
+		//closing sends QUIT, so keep it off the timer thread
+		mailer.getDispatcher().execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				close(connection.transport);
+			}
+		});
+	}
+
+	/**
+	 * Closes a connection that failed, rather than returning it to the pool
+	 * @param connection the connection
+	 */
+	void discard(Connection connection)
+	{
+		close(connection.transport);
+	}
+
+	/**
+	 * Get the number of idle connections
+	 * @return the number of connections waiting to be reused
+	 */
+	int idleCount()
+	{
+		synchronized (idle)
+		{
+			return idle.size();
+		}
+	}
+
+	/**
+	 * Opens and authenticates connections in the background until at least {@code target} are idle.
+	 * The DNS lookup, TLS handshake and login are paid here rather than when the next message is sent.
+	 * @param target the number of idle connections wanted
+	 */
+	void warm(int target)
+	{
+		int missing;
+		synchronized (idle)
+		{
+			missing = target - idle.size() - warming;
+			if (missing <= 0)
+				return;
+			warming += missing;
+		}
+		for (int i = 0; i < missing; i++)
+		{
+			mailer.getDispatcher().execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					Connection connection = null;
+					SmtpEndpoints endpoints = mailer.getEndpoints();
+					String host = endpoints.select(Collections.<String>emptyList());
+					if (host != null)
+					{
+						try
+						{
+							connection = connect(mailer.getSendSession(), host, endpoints);
+						}
+						catch (MessagingException e)
+						{
+							Platform.getInstance().warn(TAG, "Could not open connection to " + host, e);
+						}
+					}
+					synchronized (idle)
+					{
+						warming--;
+						if (connection != null)
+							park(connection);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Keeps at least {@code target} idle connections open: stale connections are dropped, the {@code target}
+	 * most recently used are checked with NOOP so the server does not close them, and new connections
+	 * are opened if too few remain. Any others are closed when their expiry runs. Makes network requests, so it must
+	 * not be called on the main thread.
+	 * @param target the number of idle connections wanted
+	 */
+	void maintain(int target)
+	{
+		Session session = mailer.getSendSession();
+		List<Connection> keep = new ArrayList<Connection>();
+		List<Connection> drop = new ArrayList<Connection>();
+		long now = System.currentTimeMillis();
+		synchronized (idle)
+		{
+			Iterator<Connection> it = idle.iterator();
+			while (it.hasNext())
+			{
+				Connection c = it.next();
+				if (c.session != session || now - c.idleSince > IDLE_TIMEOUT)
+				{
+					it.remove();
+					unpark(c);
+					drop.add(c);
+				}
+				else if (keep.size() < target)
+				{
+					it.remove();
+					unpark(c);
+					keep.add(c);
+				}
+			}
+		}
+		for (Connection c : drop)
+			close(c.transport);
+		for (Connection c : keep)
+		{
+			//isConnected() sends NOOP, which also resets the server's idle timer
+			if (!c.transport.isConnected())
+			{
+				close(c.transport);
+				continue;
+			}
+			synchronized (idle)
+			{
+				park(c);
+			}
+		}
+		warm(target);
+	}
+
+	/**
+	 * Closes idle connections until at most {@code target} remain. The most recently used are kept.
+	 * @param target the number of idle connections to keep
+	 */
+	void trim(int target)
+	{
+		List<Connection> drop = new ArrayList<Connection>();
+		synchronized (idle)
+		{
+			while (idle.size() > Math.max(0, target))
+			{
+				Connection c = idle.removeLast();
+				unpark(c);
+				drop.add(c);
+			}
+		}
+		for (Connection c : drop)
+			close(c.transport);
+	}
+
+	/**
+	 * Closes all idle connections
+	 */
+	void close()
+	{
+		List<Connection> connections;
+		synchronized (idle)
+		{
+			connections = new ArrayList<Connection>(idle);
+			for (Connection c : connections)
+				unpark(c);
+			idle.clear();
+		}
+		for (Connection c : connections)
+			close(c.transport);
+	}
+
+	/**
+	 * Closes a transport, logging any error
+	 * @param transport the transport
+	 */
+	private static void close(Transport transport)
+	{
+		try
+		{
+			transport.close();
+		}
+		catch (MessagingException e)
+		{
+			Platform.getInstance().warn(TAG, "Could not close transport", e);
+		}
+	}
+
+	/**
+	 * A pooled connection
+	 */
+	static class Connection
+	{
+		/** the connected transport */
+		final Transport transport;
+		/** the session that created {@link #transport} */
+		final Session session;
+		/** the server to which {@link #transport} is connected */
+		final String host;
+		/** when the connection was last returned to the pool */
+		long idleSince;
+		/** closes the connection once it has been idle for {@link TransportPool#IDLE_TIMEOUT}. Guarded by {@link TransportPool#idle}. */
+		TimerWheel.Timeout expiry;
+
+		/**
+		 * Constructor
+		 * @param transport the connected transport
+		 * @param session the session that created {@code transport}
+		 * @param host the server to which {@code transport} is connected
+		 */
+		Connection(Transport transport, Session session, String host)
+		{
+			this.transport = transport;
+			this.session = session;
+			this.host = host;
+		}
+	}
+}